@@ -1,64 +1,71 @@
-public class AstPrinter implements Expr.Visitor<String> {
+public class AstPrinter {
 
-    @Override
-    public String visitSuperExpr(Expr.Super expr) {
+    private String superExpr(Expr.Super expr) {
         return null;
     }   
 
-    @Override
-    public String visitThisExpr(Expr.This expr) {
+    private String thisExpr(Expr.This expr) {
         return null;
     }
 
-    @Override
-    public String visitSetExpr(Expr.Set expr) {
+    private String setExpr(Expr.Set expr) {
         return null;
     }
 
-    @Override
-    public String visitGetExpr(Expr.Get expr) {
+    private String getExpr(Expr.Get expr) {
         return null;
     }
 
-    @Override
-    public String visitCallExpr(Expr.Call expr) {
+    private String callExpr(Expr.Call expr) {
         return null;
     }
 
-    @Override
-    public String visitLogicalExpr(Expr.Logical expr) {
+    private String logicalExpr(Expr.Logical expr) {
         return null;
     }
 
-    @Override
-    public String visitAssignExpr(Expr.Assign expr) {
+    private String assignExpr(Expr.Assign expr) {
         return "NOTHING";
     }
 
-    @Override
-    public String visitVariableExpr(Expr.Variable expr) {
+    private String variableExpr(Expr.Variable expr) {
         return "This is a variable expression: " + expr.name.lexeme;
     }
 
     String print(Expr expr) {
-        return expr.accept(this);
+        return switch (expr) {
+            case Expr.Binary binary -> binaryExpr(binary);
+            case Expr.Grouping grouping -> groupingExpr(grouping);
+            case Expr.Literal literal -> literalExpr(literal);
+            case Expr.Unary unary -> unaryExpr(unary);
+            case Expr.Variable variable -> variableExpr(variable);
+            case Expr.Assign assign -> assignExpr(assign);
+            case Expr.Logical logical -> logicalExpr(logical);
+            case Expr.Call call -> callExpr(call);
+            case Expr.Get get -> getExpr(get);
+            case Expr.Set set -> setExpr(set);
+            case Expr.This thisExpr -> thisExpr(thisExpr);
+            case Expr.Super superExpr -> superExpr(superExpr);
+            case Expr.Inline inline -> parenthesize("inline", inline.body());
+            case Expr.Hoisted hoisted -> parenthesize("hoisted", hoisted.expression());
+        };
     }
 
-    public String visitBinaryExpr(Expr.Binary expr) {
+    private String binaryExpr(Expr.Binary expr) {
         return parenthesize(expr.operator.lexeme, expr.left, expr.right);
     }
 
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("group", expr.expression);
+    private String groupingExpr(Expr.Grouping expr) {
+        return parenthesize("group", expr.expression());
     }
 
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) return "nil";
-        return expr.value.toString();
+    private String literalExpr(Expr.Literal expr) {
+        if (expr.value() == null) return "nil";
+        return expr.value().toString();
     }
 
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+    private String unaryExpr(Expr.Unary expr) {
+        return parenthesize(expr.operator().lexeme, expr.right());
     }
 
     private String parenthesize(String name, Expr... exprs) {
@@ -66,7 +73,7 @@ public class AstPrinter implements Expr.Visitor<String> {
         builder.append("(").append(name);
         for (Expr expr : exprs) {
             builder.append(" ");
-            builder.append(expr.accept(this));
+            builder.append(print(expr));
         }
         builder.append(")");
         return builder.toString();
@@ -0,0 +1,47 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Chunk {
+    byte[] code = new byte[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants;
+
+    private final List<Object> constantList = new ArrayList<>();
+    // Names and numbers repeat a lot (every global access carries its name),
+    // so identical strings and numbers share one constant slot.
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte) b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        if (value instanceof String || value instanceof Double) {
+            Integer existing = constantIndex.get(value);
+            if (existing != null) return existing;
+            constantIndex.put(value, constantList.size());
+        }
+        constantList.add(value);
+        return constantList.size() - 1;
+    }
+
+    int constantCount() {
+        return constantList.size();
+    }
+
+    void freeze() {
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+        constants = constantList.toArray();
+    }
+}
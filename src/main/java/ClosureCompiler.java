@@ -0,0 +1,792 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The closure engine. After the Resolver has run, every node is compiled once
+// into a small Java lambda that holds its already-compiled children and the
+// facts it needs (slot, access, operator), so running the program is a chain
+// of direct calls instead of a switch over the node type on every
+// evaluation. Runtime objects (LoxFunction, LoxClass, LoxInstance, Globals)
+// are shared with the Interpreter, whose semantics this engine mirrors.
+public class ClosureCompiler {
+
+    interface Eval {
+        Object run(Environment environment);
+    }
+
+    // For expressions whose numeric() is true.
+    interface NumberEval {
+        double run(Environment environment);
+    }
+
+    interface Test {
+        boolean test(Environment environment);
+    }
+
+    interface Exec {
+        Completion exec(Environment environment);
+    }
+
+    private final Interpreter interpreter;
+    private final Globals globals;
+    // Zero while compiling top-level code, which runs without a frame.
+    private int scopeDepth = 0;
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    void interpret(List<Stmt> statements) {
+        Exec program = sequence(statements);
+        try {
+            program.exec(null);
+        } catch (RuntimeError error) {
+            Interpreter.runtimeError(error);
+        }
+    }
+
+    private Eval compile(Expr expr) {
+        return switch (expr) {
+            case Expr.Binary binary -> binaryExpr(binary);
+            case Expr.Grouping grouping -> groupingExpr(grouping);
+            case Expr.Literal literal -> literalExpr(literal);
+            case Expr.Unary unary -> unaryExpr(unary);
+            case Expr.Variable variable -> variableExpr(variable);
+            case Expr.Assign assign -> assignExpr(assign);
+            case Expr.Logical logical -> logicalExpr(logical);
+            case Expr.Call call -> callExpr(call);
+            case Expr.Get get -> getExpr(get);
+            case Expr.Set set -> setExpr(set);
+            case Expr.This thisExpr -> thisExpr(thisExpr);
+            case Expr.Super superExpr -> superExpr(superExpr);
+            case Expr.Inline inline -> inlineExpr(inline);
+            case Expr.Hoisted hoisted -> hoistedExpr(hoisted);
+        };
+    }
+
+    private Exec compile(Stmt stmt) {
+        return switch (stmt) {
+            case Stmt.Expression expression -> expressionStmt(expression);
+            case Stmt.Print print -> printStmt(print);
+            case Stmt.Var var -> varStmt(var);
+            case Stmt.Block block -> blockStmt(block);
+            case Stmt.If ifStmt -> ifStmt(ifStmt);
+            case Stmt.While loop -> whileStmt(loop);
+            case Stmt.For loop -> forStmt(loop);
+            case Stmt.Function function -> functionStmt(function);
+            case Stmt.Return ret -> returnStmt(ret);
+            case Stmt.Class klass -> classStmt(klass);
+            case Stmt.Break breakStmt -> environment -> Completion.BREAK;
+            case Stmt.Continue continueStmt -> environment -> Completion.CONTINUE;
+        };
+    }
+
+    private Exec sequence(List<Stmt> statements) {
+        Exec[] body = new Exec[statements.size()];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = compile(statements.get(i));
+        }
+        if (body.length == 1) return body[0];
+        return environment -> {
+            for (Exec statement : body) {
+                Completion completion = statement.exec(environment);
+                if (completion != Completion.NORMAL) return completion;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    // -------------------------------------------------------------- statements
+
+    private Exec expressionStmt(Stmt.Expression stmt) {
+        Eval expression = compile(stmt.expression());
+        return environment -> {
+            expression.run(environment);
+            return Completion.NORMAL;
+        };
+    }
+
+    private Exec printStmt(Stmt.Print stmt) {
+        Eval expression = compile(stmt.expression());
+        return environment -> {
+            System.out.println(Interpreter.stringify(expression.run(environment)));
+            return Completion.NORMAL;
+        };
+    }
+
+    private Exec varStmt(Stmt.Var stmt) {
+        Eval initializer = stmt.initializer == null
+            ? environment -> null : compile(stmt.initializer);
+        int slot = stmt.slot;
+        if (slot == Expr.UNRESOLVED) {
+            int index = globals.indexOf(stmt.name.lexeme);
+            return environment -> {
+                globals.define(index, initializer.run(environment));
+                return Completion.NORMAL;
+            };
+        }
+        if (stmt.cell) {
+            return environment -> {
+                environment.slots[slot] = new Environment.Cell(initializer.run(environment));
+                return Completion.NORMAL;
+            };
+        }
+        return environment -> {
+            environment.slots[slot] = initializer.run(environment);
+            return Completion.NORMAL;
+        };
+    }
+
+    private Exec blockStmt(Stmt.Block stmt) {
+        scopeDepth++;
+        Exec body = sequence(stmt.statements);
+        scopeDepth--;
+        if (scopeDepth > 0) return body;
+        // Top-level code has no frame, so its outermost blocks bring one.
+        int size = stmt.slotCount;
+        return environment -> body.exec(new Environment(size, null));
+    }
+
+    private Exec ifStmt(Stmt.If stmt) {
+        Test condition = condition(stmt.condition());
+        Exec thenBranch = compile(stmt.thenBranch());
+        if (stmt.elseBranch() == null) {
+            return environment -> condition.test(environment)
+                ? thenBranch.exec(environment) : Completion.NORMAL;
+        }
+        Exec elseBranch = compile(stmt.elseBranch());
+        return environment -> condition.test(environment)
+            ? thenBranch.exec(environment) : elseBranch.exec(environment);
+    }
+
+    private Exec whileStmt(Stmt.While stmt) {
+        Test condition = condition(stmt.condition);
+        Exec body = compile(stmt.body);
+        int[] hoisted = stmt.hoisted;
+        return environment -> {
+            unset(environment, hoisted);
+            while (condition.test(environment)) {
+                Completion completion = body.exec(environment);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    private Exec forStmt(Stmt.For stmt) {
+        scopeDepth++;
+        Exec loop = forLoop(stmt);
+        scopeDepth--;
+        if (scopeDepth > 0) return loop;
+        // Top-level code has no frame, so the loop brings one.
+        int size = stmt.slotCount;
+        return environment -> loop.exec(new Environment(size, null));
+    }
+
+    private Exec forLoop(Stmt.For stmt) {
+        Exec initializer = stmt.initializer == null
+            ? environment -> Completion.NORMAL : compile(stmt.initializer);
+        Test condition = stmt.condition == null ? environment -> true : condition(stmt.condition);
+        Exec body = compile(stmt.body);
+        Eval increment = stmt.increment == null ? null : compile(stmt.increment);
+        int[] hoisted = stmt.hoisted;
+        Exec loop = environment -> {
+            while (condition.test(environment)) {
+                Completion completion = body.exec(environment);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+                if (increment != null) increment.run(environment);
+            }
+            return Completion.NORMAL;
+        };
+        if (!stmt.counted) {
+            return environment -> {
+                initializer.exec(environment);
+                unset(environment, hoisted);
+                return loop.exec(environment);
+            };
+        }
+
+        // The counter is stepped as a primitive and stored, boxed, for the
+        // body to read. A start that isn't a number takes the generic loop,
+        // whose condition reports it.
+        int slot = ((Stmt.Var) stmt.initializer).slot;
+        Expr.Binary comparison = (Expr.Binary) stmt.condition;
+        TokenType operator = comparison.operator.type;
+        NumberEval limit = operand(comparison.right, comparison.operator);
+        double step = stmt.step;
+        return environment -> {
+            initializer.exec(environment);
+            unset(environment, hoisted);
+            if (!(environment.slots[slot] instanceof Double start)) return loop.exec(environment);
+            double counter = start;
+            while (Interpreter.compare(operator, counter, limit.run(environment))) {
+                Completion completion = body.exec(environment);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+                counter += step;
+                environment.slots[slot] = counter;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    private static void unset(Environment environment, int[] hoisted) {
+        for (int slot : hoisted) environment.slots[slot] = Expr.Hoisted.UNSET;
+    }
+
+    // One operand of 'operator', which only takes numbers.
+    private NumberEval operand(Expr expr, Token operator) {
+        if (expr.numeric()) return number(expr);
+        Eval value = compile(expr);
+        return environment -> {
+            Object result = value.run(environment);
+            if (!(result instanceof Double)) {
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+            return (double) result;
+        };
+    }
+
+    private Exec functionBody(Stmt.Function stmt) {
+        scopeDepth++;
+        Exec body = sequence(stmt.body);
+        scopeDepth--;
+        return body;
+    }
+
+    private Exec functionStmt(Stmt.Function stmt) {
+        Exec body = functionBody(stmt);
+        int slot = stmt.slot;
+        if (slot == Expr.UNRESOLVED) {
+            int index = globals.indexOf(stmt.name.lexeme);
+            return environment -> {
+                globals.define(index, new LoxFunction(stmt,
+                    Interpreter.capture(environment, stmt), false, false, body));
+                return Completion.NORMAL;
+            };
+        }
+        if (stmt.cell) {
+            return environment -> {
+                Environment.Cell cell = new Environment.Cell(null);
+                environment.slots[slot] = cell;
+                cell.value = new LoxFunction(stmt, environment.capture(stmt.captures), false, false, body);
+                return Completion.NORMAL;
+            };
+        }
+        return environment -> {
+            environment.slots[slot] = new LoxFunction(stmt,
+                environment.capture(stmt.captures), false, false, body);
+            return Completion.NORMAL;
+        };
+    }
+
+    private Exec returnStmt(Stmt.Return stmt) {
+        if (stmt.value() == null) {
+            return environment -> {
+                interpreter.returnValue = null;
+                return Completion.RETURN;
+            };
+        }
+        Eval value = stmt.value() instanceof Expr.Call call
+            ? callExpr(call, true) : compile(stmt.value());
+        return environment -> {
+            interpreter.returnValue = value.run(environment);
+            return Completion.RETURN;
+        };
+    }
+
+    private Exec classStmt(Stmt.Class stmt) {
+        Eval superclassValue = stmt.superclass == null ? null : compile(stmt.superclass);
+        Map<Stmt.Function, Exec> bodies = new HashMap<>();
+        for (Stmt.Function method : stmt.methods) {
+            bodies.put(method, functionBody(method));
+        }
+        int slot = stmt.slot;
+        boolean global = slot == Expr.UNRESOLVED;
+        boolean cell = stmt.cell;
+        int index = global ? globals.indexOf(stmt.name.lexeme) : -1;
+        int superSlot = stmt.superSlot;
+
+        return environment -> {
+            LoxClass superclass = null;
+            if (superclassValue != null) {
+                Object value = superclassValue.run(environment);
+                if (!(value instanceof LoxClass)) {
+                    throw new RuntimeError(stmt.superclass.name,
+                        "Superclass must be a class.");
+                }
+                superclass = (LoxClass) value;
+            }
+
+            if (global) {
+                globals.define(index, null);
+            } else {
+                environment.define(slot, cell, null);
+            }
+
+            Environment scope = environment;
+            if (superclass != null) {
+                if (scope == null) scope = new Environment(1, null);
+                scope.slots[superSlot] = superclass;
+            }
+
+            Map<String, LoxFunction> methods = new HashMap<>();
+            for (Stmt.Function method : stmt.methods) {
+                methods.put(method.name.lexeme, new LoxFunction(method,
+                    Interpreter.capture(scope, method),
+                    method.name.lexeme.equals("init"), true, bodies.get(method)));
+            }
+
+            LoxClass klass = new LoxClass(stmt.name.lexeme, superclass, methods);
+            if (global) {
+                globals.define(index, klass);
+            } else {
+                environment.assign(Expr.LOCAL, slot, cell, klass);
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    // ------------------------------------------------------------- expressions
+
+    private Eval literalExpr(Expr.Literal expr) {
+        Object value = expr.value();
+        return environment -> value;
+    }
+
+    private Eval groupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression());
+    }
+
+    private Eval unaryExpr(Expr.Unary expr) {
+        if (expr.operator().type == TokenType.MINUS) {
+            NumberEval number = number(expr);
+            return environment -> number.run(environment);
+        }
+        Eval right = compile(expr.right());
+        return environment -> !Interpreter.isTruthy(right.run(environment));
+    }
+
+    private Eval binaryExpr(Expr.Binary expr) {
+        if (expr.numeric()) {
+            NumberEval number = number(expr);
+            return environment -> number.run(environment);
+        }
+
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                NumberEval arithmetic = arithmetic(expr);
+                return environment -> arithmetic.run(environment);
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                Test comparison = comparison(expr);
+                return environment -> comparison.test(environment);
+            default:
+                break;
+        }
+
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        Token operator = expr.operator;
+        switch (operator.type) {
+            case PLUS:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a + (double) b;
+                    }
+                    if (a instanceof CharSequence && b instanceof CharSequence) {
+                        return Rope.concat((CharSequence) a, (CharSequence) b);
+                    }
+                    throw new RuntimeError(operator,
+                        "Operands must be two numbers or two strings.");
+                };
+            case EQUAL_EQUAL:
+                return environment -> Interpreter.isEqual(left.run(environment), right.run(environment));
+            default:
+                return environment -> !Interpreter.isEqual(left.run(environment), right.run(environment));
+        }
+    }
+
+    // Compiles an expression whose numeric() is true so that it yields a
+    // primitive double, boxing nothing along the way.
+    private NumberEval number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            double value = (double) ((Expr.Literal) expr).value();
+            return environment -> value;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return number(((Expr.Grouping) expr).expression());
+        }
+        if (expr instanceof Expr.Variable) {
+            // A local TypeInference has proved holds a number.
+            int slot = ((Expr.Variable) expr).slot;
+            return environment -> (double) environment.slots[slot];
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.right().numeric()) {
+                NumberEval right = number(unary.right());
+                return environment -> -right.run(environment);
+            }
+            Eval right = compile(unary.right());
+            Token operator = unary.operator();
+            return environment -> {
+                Object value = right.run(environment);
+                if (!(value instanceof Double)) {
+                    throw new RuntimeError(operator, "Operand must be a number.");
+                }
+                return -(double) value;
+            };
+        }
+        return arithmetic((Expr.Binary) expr);
+    }
+
+    private NumberEval arithmetic(Expr.Binary expr) {
+        Token operator = expr.operator;
+        if (expr.left.numeric() && expr.right.numeric()) {
+            NumberEval left = number(expr.left);
+            NumberEval right = number(expr.right);
+            switch (operator.type) {
+                case MINUS: return environment -> left.run(environment) - right.run(environment);
+                case STAR:  return environment -> left.run(environment) * right.run(environment);
+                case SLASH: return environment -> left.run(environment) / right.run(environment);
+                default:    return environment -> left.run(environment) + right.run(environment);
+            }
+        }
+
+        // Both sides are evaluated before either is checked, like the Interpreter.
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        switch (operator.type) {
+            case MINUS:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double) a - (double) b;
+                };
+            case STAR:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double) a * (double) b;
+                };
+            default:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double) a / (double) b;
+                };
+        }
+    }
+
+    private Test comparison(Expr.Binary expr) {
+        Token operator = expr.operator;
+        if (expr.left.numeric() && expr.right.numeric()) {
+            NumberEval left = number(expr.left);
+            NumberEval right = number(expr.right);
+            switch (operator.type) {
+                case GREATER:       return environment -> left.run(environment) > right.run(environment);
+                case GREATER_EQUAL: return environment -> left.run(environment) >= right.run(environment);
+                case LESS:          return environment -> left.run(environment) < right.run(environment);
+                default:            return environment -> left.run(environment) <= right.run(environment);
+            }
+        }
+
+        Eval left = compile(expr.left);
+        Eval right = compile(expr.right);
+        switch (operator.type) {
+            case GREATER:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double) a > (double) b;
+                };
+            case GREATER_EQUAL:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double) a >= (double) b;
+                };
+            case LESS:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double) a < (double) b;
+                };
+            default:
+                return environment -> {
+                    Object a = left.run(environment);
+                    Object b = right.run(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double) a <= (double) b;
+                };
+        }
+    }
+
+    private Test condition(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            switch (((Expr.Binary) expr).operator.type) {
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                    return comparison((Expr.Binary) expr);
+                default:
+                    break;
+            }
+        }
+        Eval value = compile(expr);
+        return environment -> Interpreter.isTruthy(value.run(environment));
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    private Eval logicalExpr(Expr.Logical expr) {
+        Eval left = compile(expr.left());
+        Eval right = compile(expr.right());
+        if (expr.operator().type == TokenType.OR) {
+            return environment -> {
+                Object value = left.run(environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.run(environment);
+            };
+        }
+        return environment -> {
+            Object value = left.run(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.run(environment);
+        };
+    }
+
+    private Eval variable(Token name, int access, int slot, boolean cell) {
+        if (access == Expr.GLOBAL) {
+            return environment -> globals.get(slot, name);
+        }
+        if (access == Expr.LOCAL) {
+            if (cell) return environment -> ((Environment.Cell) environment.slots[slot]).value;
+            return environment -> environment.slots[slot];
+        }
+        if (cell) return environment -> ((Environment.Cell) environment.captures[slot]).value;
+        return environment -> environment.captures[slot];
+    }
+
+    private Eval variableExpr(Expr.Variable expr) {
+        return variable(expr.name, expr.access, expr.slot, expr.cell);
+    }
+
+    private Eval thisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.access, expr.slot, false);
+    }
+
+    private Eval assignExpr(Expr.Assign expr) {
+        Eval value = compile(expr.value);
+        Token name = expr.name;
+        int access = expr.access;
+        int slot = expr.slot;
+        boolean cell = expr.cell;
+        if (access == Expr.GLOBAL) {
+            return environment -> {
+                Object result = value.run(environment);
+                globals.assign(slot, name, result);
+                return result;
+            };
+        }
+        return environment -> {
+            Object result = value.run(environment);
+            environment.assign(access, slot, cell, result);
+            return result;
+        };
+    }
+
+    private Eval getExpr(Expr.Get expr) {
+        Eval object = compile(expr.object());
+        Token name = expr.name();
+        PropertyCache cache = expr.cache();
+        return environment -> {
+            Object value = object.run(environment);
+            if (value instanceof LoxInstance) {
+                return cache.get((LoxInstance) value, name);
+            }
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    private Eval setExpr(Expr.Set expr) {
+        Eval object = compile(expr.object());
+        Eval value = compile(expr.value());
+        Token name = expr.name();
+        PropertyCache cache = expr.cache();
+        return environment -> {
+            Object target = object.run(environment);
+            if (!(target instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+            Object result = value.run(environment);
+            cache.set((LoxInstance) target, name, result);
+            return result;
+        };
+    }
+
+    private Eval superExpr(Expr.Super expr) {
+        int access = expr.access;
+        int slot = expr.slot;
+        int thisAccess = expr.thisAccess;
+        int thisSlot = expr.thisSlot;
+        Token method = expr.method;
+        PropertyCache cache = expr.cache;
+        return environment -> {
+            LoxClass superclass = (LoxClass) environment.get(access, slot, false);
+            LoxInstance object = (LoxInstance) environment.get(thisAccess, thisSlot, false);
+            LoxFunction function = cache.findSuperMethod(superclass, method);
+            if (function == null) {
+                throw new RuntimeError(method,
+                    "Undefined property '" + method.lexeme + "'.");
+            }
+            return function.bind(object);
+        };
+    }
+
+    private Eval inlineExpr(Expr.Inline expr) {
+        Eval callee = compile(expr.callee());
+        Eval[] arguments = new Eval[expr.arguments().size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments().get(i));
+        }
+        int firstSlot = expr.firstSlot();
+        Eval body = compile(expr.body());
+        return environment -> {
+            callee.run(environment);
+            for (int i = 0; i < arguments.length; i++) {
+                environment.slots[firstSlot + i] = arguments[i].run(environment);
+            }
+            return body.run(environment);
+        };
+    }
+
+    private Eval hoistedExpr(Expr.Hoisted expr) {
+        Eval expression = compile(expr.expression());
+        int slot = expr.slot();
+        return environment -> {
+            Object value = environment.slots[slot];
+            if (value == Expr.Hoisted.UNSET) {
+                value = expression.run(environment);
+                environment.slots[slot] = value;
+            }
+            return value;
+        };
+    }
+
+    private Eval callExpr(Expr.Call expr) {
+        return callExpr(expr, false);
+    }
+
+    // A tail call ('return f(...)') hands Lox functions back to the running
+    // LoxFunction.call through Interpreter.tailCall instead of calling them.
+    private Eval callExpr(Expr.Call expr, boolean tail) {
+        Eval[] arguments = new Eval[expr.arguments().size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments().get(i));
+        }
+        Token paren = expr.paren();
+
+        if (expr.callee() instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee();
+            Eval object = compile(get.object());
+            Token name = get.name();
+            PropertyCache cache = get.cache();
+            return environment -> {
+                Object receiver = object.run(environment);
+                if (!(receiver instanceof LoxInstance)) {
+                    throw new RuntimeError(name, "Only instances have properties.");
+                }
+                LoxInstance instance = (LoxInstance) receiver;
+                LoxFunction method = cache.findMethod(instance, name);
+                if (method == null) {
+                    return call(paren, cache.get(instance, name), arguments, environment, tail);
+                }
+                List<Object> values = evaluate(arguments, environment);
+                checkArity(paren, method, values);
+                if (tail) return interpreter.tailCall(method, instance, values);
+                interpreter.callSite = paren;
+                return method.call(interpreter, instance, values);
+            };
+        }
+
+        if (expr.callee() instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super) expr.callee();
+            int access = callee.access;
+            int slot = callee.slot;
+            int thisAccess = callee.thisAccess;
+            int thisSlot = callee.thisSlot;
+            Token method = callee.method;
+            PropertyCache cache = callee.cache;
+            return environment -> {
+                LoxClass superclass = (LoxClass) environment.get(access, slot, false);
+                LoxInstance object = (LoxInstance) environment.get(thisAccess, thisSlot, false);
+                LoxFunction function = cache.findSuperMethod(superclass, method);
+                if (function == null) {
+                    throw new RuntimeError(method,
+                        "Undefined property '" + method.lexeme + "'.");
+                }
+                List<Object> values = evaluate(arguments, environment);
+                checkArity(paren, function, values);
+                if (tail) return interpreter.tailCall(function, object, values);
+                interpreter.callSite = paren;
+                return function.call(interpreter, object, values);
+            };
+        }
+
+        Eval callee = compile(expr.callee());
+        return environment -> call(paren, callee.run(environment), arguments, environment, tail);
+    }
+
+    private Object call(Token paren, Object callee, Eval[] arguments, Environment environment,
+                        boolean tail) {
+        List<Object> values = evaluate(arguments, environment);
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        checkArity(paren, function, values);
+        if (tail && function instanceof LoxFunction) {
+            return interpreter.tailCall((LoxFunction) function, ((LoxFunction) function).receiver(), values);
+        }
+        interpreter.callSite = paren;
+        return function.call(interpreter, values);
+    }
+
+    private static List<Object> evaluate(Eval[] arguments, Environment environment) {
+        List<Object> values = new ArrayList<>(arguments.length);
+        for (Eval argument : arguments) {
+            values.add(argument.run(environment));
+        }
+        return values;
+    }
+
+    private static void checkArity(Token paren, LoxCallable function, List<Object> arguments) {
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                function.arity() + " arguments but got " +
+                arguments.size() + ".");
+        }
+    }
+}
@@ -0,0 +1,585 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Lowers the resolved syntax tree into bytecode for the VM. Locals live in
+// stack slots and closed-over variables become upvalues, so the compiler
+// keeps its own scope bookkeeping; the Resolver has already reported every
+// static error by the time we get here.
+public class Compiler {
+    private static final int MAX_OPERAND = 65535;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VM.Function function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, VM.Function function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            // Slot zero holds the callee, or the receiver inside methods.
+            String slotZero = type == FunctionType.METHOD || type == FunctionType.INITIALIZER
+                ? "this" : "";
+            locals.add(new Local(slotZero, 0));
+        }
+    }
+
+    // The innermost loop being compiled, with the jumps 'break' and
+    // 'continue' left to patch once its end and increment are known.
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+        final List<Integer> continueJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class ClassState {
+        final ClassState enclosing;
+        boolean hasSuperclass = false;
+
+        ClassState(ClassState enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
+
+    private FunctionState current;
+    private ClassState currentClass;
+    private int line = 1;
+
+    VM.Function compile(List<Stmt> statements) {
+        current = new FunctionState(null, new VM.Function(null), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Expression expression -> expressionStmt(expression);
+            case Stmt.Print print -> printStmt(print);
+            case Stmt.Var var -> varStmt(var);
+            case Stmt.Block block -> blockStmt(block);
+            case Stmt.If ifStmt -> ifStmt(ifStmt);
+            case Stmt.While loop -> whileStmt(loop);
+            case Stmt.For loop -> forStmt(loop);
+            case Stmt.Function function -> functionStmt(function);
+            case Stmt.Return ret -> returnStmt(ret);
+            case Stmt.Class klass -> classStmt(klass);
+            case Stmt.Break breakStmt -> jumpOutOfLoop(current.loop.breakJumps);
+            case Stmt.Continue continueStmt -> jumpOutOfLoop(current.loop.continueJumps);
+        }
+    }
+
+    private void compile(Expr expr) {
+        switch (expr) {
+            case Expr.Binary binary -> binaryExpr(binary);
+            case Expr.Grouping grouping -> groupingExpr(grouping);
+            case Expr.Literal literal -> literalExpr(literal);
+            case Expr.Unary unary -> unaryExpr(unary);
+            case Expr.Variable variable -> variableExpr(variable);
+            case Expr.Assign assign -> assignExpr(assign);
+            case Expr.Logical logical -> logicalExpr(logical);
+            case Expr.Call call -> callExpr(call);
+            case Expr.Get get -> getExpr(get);
+            case Expr.Set set -> setExpr(set);
+            case Expr.This thisExpr -> thisExpr(thisExpr);
+            case Expr.Super superExpr -> superExpr(superExpr);
+            // The VM has no frame slots to spare for these, and calls are
+            // cheap here anyway.
+            case Expr.Inline inline -> callExpr(
+                new Expr.Call(inline.callee(), inline.paren(), inline.arguments()));
+            case Expr.Hoisted hoisted -> compile(hoisted.expression());
+        }
+    }
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private VM.Function endFunction() {
+        emitReturn();
+        VM.Function function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.freeze();
+        current = current.enclosing;
+        return function;
+    }
+
+    // ---------------------------------------------------------------- emitting
+
+    private void emit(int b) {
+        chunk().write(b, line);
+    }
+
+    private void emit(byte op, int operand) {
+        emit(op);
+        emitShort(operand);
+    }
+
+    private void emitShort(int value) {
+        emit((value >> 8) & 0xff);
+        emit(value & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emit(OpCode.GET_LOCAL, 0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private int makeConstant(Object value) {
+        int index = chunk().addConstant(value);
+        if (index > MAX_OPERAND) {
+            Scanner.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return index;
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        emit(0xff);
+        emit(0xff);
+        return chunk().count - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = chunk().count - offset - 2;
+        if (jump > MAX_OPERAND) {
+            Scanner.error(line, "Too much code to jump over.");
+        }
+        chunk().code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk().code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emit(OpCode.LOOP);
+        int offset = chunk().count - loopStart + 2;
+        if (offset > MAX_OPERAND) {
+            Scanner.error(line, "Loop body too large.");
+        }
+        emitShort(offset);
+    }
+
+    // ------------------------------------------------------------------ scopes
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emit(OpCode.CLOSE_UPVALUE);
+            } else {
+                emit(OpCode.POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void addLocal(String name) {
+        if (current.locals.size() > MAX_OPERAND) {
+            Scanner.error(line, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    // Stores the value on top of the stack into a freshly declared variable.
+    // Locals simply stay where they are; globals go through the globals table.
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            addLocal(name.lexeme);
+            return;
+        }
+        emit(OpCode.DEFINE_GLOBAL, makeConstant(name.lexeme));
+    }
+
+    private static int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void namedVariable(String name, boolean assign) {
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emit(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, arg);
+            return;
+        }
+
+        arg = resolveUpvalue(current, name);
+        if (arg != -1) {
+            emit(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, arg);
+            return;
+        }
+
+        emit(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, makeConstant(name));
+    }
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        current = new FunctionState(current, new VM.Function(stmt.name.lexeme), type);
+        current.function.arity = stmt.params.size();
+        beginScope();
+        for (Token param : stmt.params) {
+            addLocal(param.lexeme);
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        // The body's locals die with the frame, so there is no endScope() here.
+        FunctionState state = current;
+        VM.Function function = endFunction();
+        emit(OpCode.CLOSURE, makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emit(upvalue.isLocal ? 1 : 0);
+            emitShort(upvalue.index);
+        }
+    }
+
+    // -------------------------------------------------------------- statements
+
+    private void expressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression());
+        emit(OpCode.POP);
+    }
+
+    private void printStmt(Stmt.Print stmt) {
+        compile(stmt.expression());
+        emit(OpCode.PRINT);
+    }
+
+    private void varStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL);
+        }
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+    }
+
+    private void blockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+    }
+
+    private void ifStmt(Stmt.If stmt) {
+        compile(stmt.condition());
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch());
+
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (stmt.elseBranch() != null) {
+            compile(stmt.elseBranch());
+        }
+        patchJump(elseJump);
+    }
+
+    private void whileStmt(Stmt.While stmt) {
+        loop(stmt.condition, stmt.body, null);
+    }
+
+    private void forStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+        loop(stmt.condition == null ? new Expr.Literal(true) : stmt.condition,
+            stmt.body, stmt.increment);
+        endScope();
+    }
+
+    private void loop(Expr condition, Stmt body, Expr increment) {
+        int loopStart = chunk().count;
+        compile(condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        Loop loop = new Loop(current.loop, current.scopeDepth);
+        current.loop = loop;
+        compile(body);
+        current.loop = loop.enclosing;
+
+        for (int jump : loop.continueJumps) {
+            patchJump(jump);
+        }
+        if (increment != null) {
+            compile(increment);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+    }
+
+    // Discards the locals declared inside the loop body, as leaving their
+    // scopes normally would, then jumps to a spot patched in later.
+    private void jumpOutOfLoop(List<Integer> jumps) {
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > current.loop.scopeDepth; i--) {
+            emit(locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+        jumps.add(emitJump(OpCode.JUMP));
+    }
+
+    private void functionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        if (current.scopeDepth > 0) {
+            // Declare first so the body can refer to itself.
+            addLocal(stmt.name.lexeme);
+            function(stmt, FunctionType.FUNCTION);
+            return;
+        }
+        function(stmt, FunctionType.FUNCTION);
+        line = stmt.name.line;
+        defineVariable(stmt.name);
+    }
+
+    private void returnStmt(Stmt.Return stmt) {
+        line = stmt.keyword().line;
+        if (stmt.value() == null) {
+            emitReturn();
+            return;
+        }
+        if (stmt.value() instanceof Expr.Call call) {
+            callExpr(call, OpCode.TAIL_CALL);
+        } else {
+            compile(stmt.value());
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private void classStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        emit(OpCode.CLASS, nameConstant);
+        defineVariable(stmt.name);
+
+        ClassState classState = new ClassState(currentClass);
+        currentClass = classState;
+
+        if (stmt.superclass != null) {
+            beginScope();
+            addLocal("super");
+            variableExpr(stmt.superclass);
+            namedVariable(stmt.name.lexeme, false);
+            line = stmt.superclass.name.line;
+            emit(OpCode.INHERIT);
+            classState.hasSuperclass = true;
+        }
+
+        namedVariable(stmt.name.lexeme, false);
+        for (Stmt.Function method : stmt.methods) {
+            line = method.name.line;
+            FunctionType type = method.name.lexeme.equals("init")
+                ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emit(OpCode.METHOD, makeConstant(method.name.lexeme));
+        }
+        emit(OpCode.POP);
+
+        if (classState.hasSuperclass) {
+            endScope();
+        }
+        currentClass = currentClass.enclosing;
+    }
+
+    // ------------------------------------------------------------- expressions
+
+    private void literalExpr(Expr.Literal expr) {
+        if (expr.value() == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value() instanceof Boolean) {
+            emit((Boolean) expr.value() ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, makeConstant(expr.value()));
+        }
+    }
+
+    private void groupingExpr(Expr.Grouping expr) {
+        compile(expr.expression());
+    }
+
+    private void unaryExpr(Expr.Unary expr) {
+        compile(expr.right());
+        line = expr.operator().line;
+        emit(expr.operator().type == TokenType.MINUS ? OpCode.NEGATE : OpCode.NOT);
+    }
+
+    private void binaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case PLUS:          emit(OpCode.ADD); break;
+            case MINUS:         emit(OpCode.SUBTRACT); break;
+            case STAR:          emit(OpCode.MULTIPLY); break;
+            case SLASH:         emit(OpCode.DIVIDE); break;
+            case GREATER:       emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS:          emit(OpCode.LESS); break;
+            case LESS_EQUAL:    emit(OpCode.LESS_EQUAL); break;
+            case EQUAL_EQUAL:   emit(OpCode.EQUAL); break;
+            case BANG_EQUAL:    emit(OpCode.NOT_EQUAL); break;
+            default:
+                break;
+        }
+    }
+
+    private void logicalExpr(Expr.Logical expr) {
+        compile(expr.left());
+        if (expr.operator().type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.right());
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compile(expr.right());
+            patchJump(endJump);
+        }
+    }
+
+    private void variableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme, false);
+    }
+
+    private void assignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        namedVariable(expr.name.lexeme, true);
+    }
+
+    private void callExpr(Expr.Call expr) {
+        callExpr(expr, OpCode.CALL);
+    }
+
+    private void callExpr(Expr.Call expr, byte op) {
+        compile(expr.callee());
+        for (Expr argument : expr.arguments()) {
+            compile(argument);
+        }
+        line = expr.paren().line;
+        emit(op);
+        emit(expr.arguments().size());
+    }
+
+    private void getExpr(Expr.Get expr) {
+        compile(expr.object());
+        line = expr.name().line;
+        emit(OpCode.GET_PROPERTY, makeConstant(expr.name().lexeme));
+    }
+
+    private void setExpr(Expr.Set expr) {
+        compile(expr.object());
+        // The tree-walker rejects a non-instance receiver before it evaluates
+        // the value, so side effects of the value must not run first.
+        line = expr.name().line;
+        emit(OpCode.CHECK_FIELDS);
+        compile(expr.value());
+        line = expr.name().line;
+        emit(OpCode.SET_PROPERTY, makeConstant(expr.name().lexeme));
+    }
+
+    private void thisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        namedVariable("this", false);
+    }
+
+    private void superExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        namedVariable("this", false);
+        namedVariable("super", false);
+        line = expr.method.line;
+        emit(OpCode.GET_SUPER, makeConstant(expr.method.lexeme));
+    }
+}
@@ -0,0 +1,9 @@
+// How a statement finished running. Engines hand this back up instead of
+// throwing, so a return unwinds as ordinary Java returns. The value of a
+// RETURN is left in Interpreter.returnValue for the function being called.
+enum Completion {
+    NORMAL,
+    RETURN,
+    BREAK,
+    CONTINUE
+}
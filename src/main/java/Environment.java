@@ -1,62 +1,53 @@
-import java.util.HashMap;
-import java.util.Map;
-
 public class Environment {
-    private final Map<String, Object> values = new HashMap<>();
-    final Environment enclosing;
-
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
-    }
-
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
-    }
-
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-          environment = environment.enclosing; 
+    // The flat frame of one function call: every local of the function in
+    // the slot the Resolver gave it, plus the values the function captured
+    // when it was created. Globals live in Globals instead.
+    final Object[] slots;
+    final Object[] captures;
+
+    // A captured variable that is assigned after capture. The frame and
+    // every closure that captured it share the Cell.
+    static final class Cell {
+        Object value;
+
+        Cell(Object value) {
+            this.value = value;
         }
-    
-        return environment;
-    }
-
-    Environment() {
-        this.enclosing = null;
     }
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    Environment(int size, Object[] captures) {
+        this.slots = new Object[size];
+        this.captures = captures;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    Object get(int access, int slot, boolean cell) {
+        Object value = access == Expr.LOCAL ? slots[slot] : captures[slot];
+        return cell ? ((Cell) value).value : value;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    // Captures are only assigned through Cells; the Resolver boxes every
+    // captured variable that is ever assigned.
+    void assign(int access, int slot, boolean cell, Object value) {
+        if (cell) {
+            ((Cell) (access == Expr.LOCAL ? slots[slot] : captures[slot])).value = value;
+        } else {
+            slots[slot] = value;
         }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+    // Stores a declaration's value, boxed when closures share it.
+    void define(int slot, boolean cell, Object value) {
+        slots[slot] = cell ? new Cell(value) : value;
+    }
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+    // What a function declared in this frame captures, as listed in
+    // Stmt.Function.captures.
+    Object[] capture(int[] captures) {
+        Object[] values = new Object[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int from = captures[i];
+            values[i] = from >= 0 ? slots[from] : this.captures[-1 - from];
         }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        return values;
     }
 }
@@ -1,201 +1,189 @@
 import java.util.List;
 
-public abstract class Expr {
-    interface Visitor <R> {
-        R visitBinaryExpr(Binary expr);
-        R visitGroupingExpr(Grouping expr);
-        R visitLiteralExpr(Literal expr);
-        R visitUnaryExpr(Unary expr);
-        R visitVariableExpr(Variable expr);
-        R visitAssignExpr(Assign expr);
-        R visitLogicalExpr(Logical expr);
-        R visitCallExpr(Call expr);
-        R visitGetExpr(Get expr);
-        R visitSetExpr(Set expr);
-        R visitThisExpr(This expr);
-        R visitSuperExpr(Super expr);
+// Expression nodes. The set is sealed, so consumers dispatch with an
+// exhaustive switch and the compiler tells them when a node is missing.
+// Nodes the Resolver or the runtime annotate are final classes; the rest
+// are records.
+public sealed interface Expr {
+
+    // True when the expression can only produce a number (or throw), which
+    // lets the engines evaluate it as a primitive double.
+    default boolean numeric() {
+        return false;
     }
 
-    abstract <R> R accept (Visitor <R> visitor);
+    // Where the Resolver found a variable: in Globals, in the running
+    // function's frame, or among the values its closure captured.
+    int GLOBAL = -1;
+    int LOCAL = 0;
+    int UPVALUE = 1;
+    // Slot of a node the Resolver never saw, as in the "evaluate" command.
+    int UNRESOLVED = -1;
 
-    static class Super extends Expr {
+    final class Super implements Expr {
         final Token keyword;
         final Token method;
+        final PropertyCache cache = new PropertyCache();
+        // Where the method's "this" is, seen from here.
+        int thisAccess = GLOBAL;
+        int thisSlot = UNRESOLVED;
+
+        // Filled in by the Resolver: where the variable lives, its slot or
+        // index there, and whether that holds a Cell shared with closures.
+        int access = GLOBAL;
+        int slot = UNRESOLVED;
+        boolean cell;
 
         Super(Token keyword, Token method) {
             this.keyword = keyword;
             this.method = method;
         }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitSuperExpr(this);
-        }
     }
 
-    static class This extends Expr {
+    final class This implements Expr {
         final Token keyword;
 
+        // Filled in by the Resolver: where the variable lives, its slot or
+        // index there, and whether that holds a Cell shared with closures.
+        int access = GLOBAL;
+        int slot = UNRESOLVED;
+        boolean cell;
+
         This(Token keyword) {
             this.keyword = keyword;
         }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitThisExpr(this);
-        }
     }
 
-    static class Set extends Expr {
-        final Expr object;
-        final Token name;
-        final Expr value;
-
+    record Set(Expr object, Token name, Expr value, PropertyCache cache) implements Expr {
         Set(Expr object, Token name, Expr value) {
-            this.object = object;
-            this.name = name;
-            this.value = value;
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitSetExpr(this);
+            this(object, name, value, new PropertyCache());
         }
     }
 
-    static class Get extends Expr {
-        final Expr object;
-        final Token name;
-
+    record Get(Expr object, Token name, PropertyCache cache) implements Expr {
         Get(Expr object, Token name) {
-            this.object = object;
-            this.name = name;
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitGetExpr(this);
+            this(object, name, new PropertyCache());
         }
     }
 
-    static class Binary extends Expr {
+    final class Binary implements Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        private final boolean numeric;
+
+        // Runtime type feedback for '+', '==' and '!='. A node starts out
+        // UNINITIALIZED, rewrites itself to the operation it first sees, and
+        // falls back to GENERIC for good once its operand types change.
+        Specialization specialization = Specialization.UNINITIALIZED;
+
+        enum Specialization {
+            UNINITIALIZED,
+            ADD_NUMBERS,
+            ADD_STRINGS,
+            EQUAL_NUMBERS,
+            NOT_EQUAL_NUMBERS,
+            GENERIC
+        }
 
         Binary(Expr left, Token operator, Expr right) {
             this.left = left;
             this.operator = operator;
             this.right = right;
+            switch (operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    this.numeric = true;
+                    break;
+                case PLUS:
+                    this.numeric = left.numeric() && right.numeric();
+                    break;
+                default:
+                    this.numeric = false;
+                    break;
+            }
         }
 
         @Override
-        <R> R accept(Visitor <R> visitor) {
-            return visitor.visitBinaryExpr(this);
+        public boolean numeric() {
+            return numeric;
         }
     }
 
-    static class Grouping extends Expr {
-        final Expr expression;
-
-        Grouping(Expr expression) {
-            this.expression = expression;
-        }
-
+    record Grouping(Expr expression) implements Expr {
         @Override
-        <R> R accept(Visitor <R> visitor) {
-            return visitor.visitGroupingExpr(this);
+        public boolean numeric() {
+            return expression.numeric();
         }
     }
 
-    static class Literal extends Expr {
-        final Object value;
-
-        Literal(Object value) {
-            this.value = value;
-        }
-
+    record Literal(Object value) implements Expr {
         @Override
-        <R> R accept(Visitor <R> visitor) {
-            return visitor.visitLiteralExpr(this);
+        public boolean numeric() {
+            return value instanceof Double;
         }
     }
 
-    static class Unary extends Expr {
-        final Token operator;
-        final Expr right;
-
-        Unary(Token operator, Expr right) {
-            this.operator = operator;
-            this.right = right;
-        }
-
+    record Unary(Token operator, Expr right) implements Expr {
         @Override
-        <R> R accept(Visitor <R> visitor) {
-            return visitor.visitUnaryExpr(this);
+        public boolean numeric() {
+            return operator.type == TokenType.MINUS;
         }
     }
 
-    static class Variable extends Expr {
+    final class Variable implements Expr {
         final Token name;
 
+        // Filled in by the Resolver: where the variable lives, its slot or
+        // index there, and whether that holds a Cell shared with closures.
+        int access = GLOBAL;
+        int slot = UNRESOLVED;
+        boolean cell;
+        // What TypeInference found the local holds here.
+        TypeInference.Type type = TypeInference.Type.ANY;
+
         Variable(Token name) {
             this.name = name;
         }
 
         @Override
-        <R> R accept(Visitor <R> visitor) {
-            return visitor.visitVariableExpr(this);
+        public boolean numeric() {
+            return type == TypeInference.Type.NUMBER;
         }
     }
 
-    static class Assign extends Expr {
+    final class Assign implements Expr {
         final Token name;
         final Expr value;
 
+        // Filled in by the Resolver: where the variable lives, its slot or
+        // index there, and whether that holds a Cell shared with closures.
+        int access = GLOBAL;
+        int slot = UNRESOLVED;
+        boolean cell;
+
         Assign(Token name, Expr value) {
             this.name = name;
             this.value = value;
         }
-
-        @Override
-        <R> R accept(Visitor <R> visitor) {
-            return visitor.visitAssignExpr(this);
-        }
     }
 
-    static class Logical extends Expr {
-        final Expr left;
-        final Token operator;
-        final Expr right;
-
-        Logical(Expr left, Token operator, Expr right) {
-            this.left = left;
-            this.operator = operator;
-            this.right = right;
-        }
+    record Logical(Expr left, Token operator, Expr right) implements Expr {}
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitLogicalExpr(this);
-        }
-    }
+    record Call(Expr callee, Token paren, List<Expr> arguments) implements Expr {}
 
-    static class Call extends Expr {
-        final Expr callee;
-        final Token paren;
-        final List<Expr> arguments;
-
-        Call(Expr callee, Token paren, List<Expr> arguments) {
-            this.callee = callee;
-            this.paren = paren;
-            this.arguments = arguments;
-        }
+    // A call the Optimizer replaced with the callee's return expression.
+    // The callee is still read first, so a call before the declaration has
+    // run fails as it did. The arguments go to the caller's frame slots
+    // from 'firstSlot' on, where 'body' reads them as its parameters.
+    record Inline(Expr.Variable callee, Token paren, List<Expr> arguments,
+                  int firstSlot, Expr body) implements Expr {}
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitCallExpr(this);
-        }
+    // A loop-invariant expression. The first evaluation after its loop
+    // starts keeps the value in frame slot 'slot', and later ones read it
+    // back; the loop resets the slot to UNSET.
+    record Hoisted(Expr expression, int slot) implements Expr {
+        static final Object UNSET = new Object();
     }
-
 }
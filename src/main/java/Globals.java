@@ -0,0 +1,55 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Global variables, stored by index. The Resolver hands every global name a
+// stable index and writes it onto the accessing node, so at runtime a global
+// read is an array load plus a check against UNDEFINED.
+public class Globals {
+    private static final Object UNDEFINED = new Object();
+
+    private final Map<String, Integer> indices = new HashMap<>();
+    private Object[] values = new Object[16];
+
+    Globals() {
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        if (index != null) return index;
+
+        int created = indices.size();
+        if (created == values.length) {
+            values = Arrays.copyOf(values, created * 2);
+            Arrays.fill(values, created, values.length, UNDEFINED);
+        }
+        indices.put(name, created);
+        return created;
+    }
+
+    void define(String name, Object value) {
+        // indexOf() may grow values, so it has to run before the store.
+        int index = indexOf(name);
+        values[index] = value;
+    }
+
+    void define(int index, Object value) {
+        values[index] = value;
+    }
+
+    Object get(int index, Token name) {
+        Object value = values[index];
+        if (value == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        return value;
+    }
+
+    void assign(int index, Token name, Object value) {
+        if (values[index] == UNDEFINED) {
+            throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        values[index] = value;
+    }
+}
@@ -0,0 +1,1190 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The JIT tier. Once a function has been called THRESHOLD times, LoxFunction
+// asks us to translate its body into a JVM method and load it as a hidden
+// class, after which HotSpot compiles it like any other Java code.
+//
+// Only functions that create no closures are compiled: then nothing but the
+// function itself can see its frame, so its locals (parameters, 'this' and
+// block variables) can live in JVM local variables instead of Environments,
+// one per slot of the flat frame. Variables of enclosing functions are read
+// from the function's captures.
+// Anything we don't handle yet throws Unsupported and the function simply
+// stays interpreted.
+//
+// Classes are written by hand with version 49, which the JVM verifies by
+// type inference, so no stack map frames are needed.
+public class JitCompiler {
+
+    // What a compiled function looks like from LoxFunction.
+    interface Code {
+        Object call(Object[] captures, LoxInstance receiver,
+                    List<Object> arguments, Interpreter interpreter);
+    }
+
+    // Calls before a function is compiled; zero or less turns the JIT off.
+    static final int THRESHOLD = Integer.getInteger("lox.jit.threshold", 1000);
+
+    // -Dlox.jit.debug=true reports every function that stays interpreted,
+    // and why.
+    private static final boolean DEBUG = Boolean.getBoolean("lox.jit.debug");
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported(String what) {
+            super(what, null, false, false);
+        }
+    }
+
+    // Compiles the function, or returns null if it has to stay interpreted.
+    static Code compile(Stmt.Function function, boolean isMethod) {
+        try {
+            JitCompiler compiler = new JitCompiler(function, isMethod);
+            byte[] bytes = compiler.assemble();
+            MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(bytes, true);
+            return (Code) lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class))
+                .invoke(compiler.constants.toArray());
+        } catch (Unsupported unsupported) {
+            if (DEBUG) {
+                System.err.println("[jit] " + function.name.lexeme + " stays interpreted: " +
+                    unsupported.getMessage());
+            }
+            return null;
+        } catch (LinkageError | ReflectiveOperationException error) {
+            // The class didn't verify or link, which is a bug in the code
+            // generator. The interpreter can still run the function.
+            if (DEBUG) {
+                System.err.println("[jit] " + function.name.lexeme + " stays interpreted: bad class");
+                error.printStackTrace();
+            }
+            return null;
+        } catch (RuntimeException | Error error) {
+            throw error;
+        } catch (Throwable error) {
+            // Only there because invoke() declares Throwable; the constructor
+            // just stores its constants.
+            throw new AssertionError(error);
+        }
+    }
+
+    // JVM locals of the generated call method.
+    private static final int THIS = 0;
+    private static final int CAPTURES = 1;
+    private static final int RECEIVER = 2;
+    private static final int ARGUMENTS = 3;
+    private static final int INTERPRETER = 4;
+    private static final int FIRST_LOCAL = 5;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String CALL = "([Ljava/lang/Object;LLoxInstance;Ljava/util/List;LInterpreter;)Ljava/lang/Object;";
+
+    private final Stmt.Function function;
+    // Methods get their receiver in slot 0.
+    private final boolean isMethod;
+    private final ClassFile file = new ClassFile();
+    private final Bytecode code = new Bytecode();
+    // Objects the code needs (tokens, caches, boxed literals), handed to the
+    // generated constructor and loaded from its 'k' field.
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+
+    // Where 'break' and 'continue' go in each enclosing loop.
+    private static class Loop {
+        final Bytecode.Label next;
+        final Bytecode.Label end;
+
+        Loop(Bytecode.Label next, Bytecode.Label end) {
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    private final List<Loop> loops = new ArrayList<>();
+
+    private JitCompiler(Stmt.Function function, boolean isMethod) {
+        this.function = function;
+        this.isMethod = isMethod;
+    }
+
+    private byte[] assemble() {
+        code.maxLocals = Math.max(code.maxLocals, FIRST_LOCAL + function.slotCount);
+        // Start every local out as nil, so the verifier sees them assigned.
+        for (int slot = 0; slot < function.slotCount; slot++) {
+            code.op(0x01, 1);                                   // aconst_null
+            code.store(local(slot));
+        }
+        int slot = 0;
+        if (isMethod) {
+            code.load(RECEIVER);
+            code.store(local(slot++));
+        }
+        for (int i = 0; i < function.params.size(); i++) {
+            code.load(ARGUMENTS);
+            code.push(i);
+            code.invoke(0xb9, file.interfaceMethod("java/util/List", "get", "(I)Ljava/lang/Object;"),
+                1, "(I)Ljava/lang/Object;");
+            code.store(local(slot++));
+        }
+        statements(function.body);
+        if (code.reachable) {
+            code.op(0x01, 1);                                   // aconst_null
+            code.op(0xb0, -1);                                  // areturn
+        }
+        return file.write(code);
+    }
+
+    // The JVM local holding a slot of the function's frame.
+    private static int local(int slot) {
+        return FIRST_LOCAL + slot;
+    }
+
+    // ------------------------------------------------------------- constants
+
+    private void constant(Object value, String type) {
+        Integer index = constantIndices.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(value, index);
+        }
+        code.load(THIS);
+        code.op(0xb4, 0);                                       // getfield k
+        code.u2(file.field(file.name, "k", "[Ljava/lang/Object;"));
+        code.push(index);
+        code.op(0x32, -1);                                      // aaload
+        if (!type.equals(OBJECT)) {
+            code.op(0xc0, 0);                                   // checkcast
+            code.u2(file.classRef(type));
+        }
+    }
+
+    private void token(Token token) {
+        constant(token, "Token");
+    }
+
+    private void globals() {
+        code.load(INTERPRETER);
+        code.op(0xb4, 0);                                       // getfield
+        code.u2(file.field("Interpreter", "globals", "LGlobals;"));
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor) {
+        code.invoke(0xb8, file.method(owner, name, descriptor), 0, descriptor);
+    }
+
+    private void helper(String name, String descriptor) {
+        invokeStatic("JitCompiler", name, descriptor);
+    }
+
+    private void emit(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Expression expression -> expressionStmt(expression);
+            case Stmt.Print print -> printStmt(print);
+            case Stmt.Var var -> varStmt(var);
+            case Stmt.Block block -> blockStmt(block);
+            case Stmt.If ifStmt -> ifStmt(ifStmt);
+            case Stmt.While loop -> whileStmt(loop);
+            case Stmt.For loop -> forStmt(loop);
+            case Stmt.Function function -> functionStmt(function);
+            case Stmt.Return ret -> returnStmt(ret);
+            case Stmt.Class klass -> classStmt(klass);
+            case Stmt.Break breakStmt -> code.jump(0xa7, loops.get(loops.size() - 1).end);         // goto
+            case Stmt.Continue continueStmt -> code.jump(0xa7, loops.get(loops.size() - 1).next); // goto
+        }
+    }
+
+    private void emit(Expr expr) {
+        switch (expr) {
+            case Expr.Binary binary -> binaryExpr(binary);
+            case Expr.Grouping grouping -> groupingExpr(grouping);
+            case Expr.Literal literal -> literalExpr(literal);
+            case Expr.Unary unary -> unaryExpr(unary);
+            case Expr.Variable variable -> variableExpr(variable);
+            case Expr.Assign assign -> assignExpr(assign);
+            case Expr.Logical logical -> logicalExpr(logical);
+            case Expr.Call call -> callExpr(call);
+            case Expr.Get get -> getExpr(get);
+            case Expr.Set set -> setExpr(set);
+            case Expr.This thisExpr -> thisExpr(thisExpr);
+            case Expr.Super superExpr -> superExpr(superExpr);
+            case Expr.Inline inline -> inlineExpr(inline);
+            case Expr.Hoisted hoisted -> hoistedExpr(hoisted);
+        }
+    }
+
+    // ------------------------------------------------------------ statements
+
+    private void statements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            // Whatever follows a return can never run.
+            if (!code.reachable) return;
+            emit(statement);
+        }
+    }
+
+    private void expressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression().numeric()) {
+            number(stmt.expression());
+            code.op(0x58, -2);                                  // pop2
+        } else {
+            emit(stmt.expression());
+            code.op(0x57, -1);                                  // pop
+        }
+    }
+
+    private void printStmt(Stmt.Print stmt) {
+        code.op(0xb2, 1);                                       // getstatic
+        code.u2(file.field("java/lang/System", "out", "Ljava/io/PrintStream;"));
+        emit(stmt.expression());
+        invokeStatic("Interpreter", "stringify", "(Ljava/lang/Object;)Ljava/lang/String;");
+        code.invoke(0xb6, file.method("java/io/PrintStream", "println", "(Ljava/lang/String;)V"),
+            1, "(Ljava/lang/String;)V");
+    }
+
+    private void varStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            code.op(0x01, 1);                                   // aconst_null
+        } else {
+            emit(stmt.initializer);
+        }
+        code.store(local(stmt.slot));
+    }
+
+    private void blockStmt(Stmt.Block stmt) {
+        statements(stmt.statements);
+    }
+
+    private void ifStmt(Stmt.If stmt) {
+        Bytecode.Label elseBranch = code.label();
+        Bytecode.Label end = code.label();
+        jumpIfFalse(stmt.condition(), elseBranch);
+        emit(stmt.thenBranch());
+        if (stmt.elseBranch() == null) {
+            code.bind(elseBranch);
+            return;
+        }
+        code.jump(0xa7, end);                                   // goto
+        code.bind(elseBranch);
+        emit(stmt.elseBranch());
+        code.bind(end);
+    }
+
+    private void whileStmt(Stmt.While stmt) {
+        Bytecode.Label start = code.label();
+        Bytecode.Label next = code.label();
+        Bytecode.Label end = code.label();
+        unset(stmt.hoisted);
+        code.bind(start);
+        jumpIfFalse(stmt.condition, end);
+        loops.add(new Loop(next, end));
+        emit(stmt.body);
+        loops.remove(loops.size() - 1);
+        code.bind(next);
+        if (code.reachable) code.jump(0xa7, start);            // goto
+        code.bind(end);
+    }
+
+    // Counted loops get no special treatment here: the counter is already
+    // a JVM local, and HotSpot unboxes what it can on its own.
+    private void forStmt(Stmt.For stmt) {
+        if (stmt.initializer != null) emit(stmt.initializer);
+        unset(stmt.hoisted);
+        Bytecode.Label start = code.label();
+        Bytecode.Label next = code.label();
+        Bytecode.Label end = code.label();
+        code.bind(start);
+        if (stmt.condition != null) jumpIfFalse(stmt.condition, end);
+        loops.add(new Loop(next, end));
+        emit(stmt.body);
+        loops.remove(loops.size() - 1);
+        code.bind(next);
+        if (code.reachable && stmt.increment != null) {
+            emit(new Stmt.Expression(stmt.increment));
+        }
+        if (code.reachable) code.jump(0xa7, start);            // goto
+        code.bind(end);
+    }
+
+    private void unset(int[] hoisted) {
+        for (int slot : hoisted) {
+            constant(Expr.Hoisted.UNSET, OBJECT);
+            code.store(local(slot));
+        }
+    }
+
+    private void returnStmt(Stmt.Return stmt) {
+        if (stmt.value() == null) {
+            code.op(0x01, 1);                                   // aconst_null
+        } else if (stmt.value() instanceof Expr.Call call) {
+            callExpr(call, true);
+        } else {
+            emit(stmt.value());
+        }
+        code.op(0xb0, -1);                                      // areturn
+        code.reachable = false;
+    }
+
+    private void functionStmt(Stmt.Function stmt) {
+        throw new Unsupported("closure");
+    }
+
+    private void classStmt(Stmt.Class stmt) {
+        throw new Unsupported("class");
+    }
+
+    // ----------------------------------------------------------- expressions
+    // Each of these leaves the expression's value on the stack as an Object.
+
+    private void literalExpr(Expr.Literal expr) {
+        if (expr.value() == null) {
+            code.op(0x01, 1);                                   // aconst_null
+        } else if (expr.value() instanceof String) {
+            code.op(0x13, 1);                                   // ldc_w
+            code.u2(file.string((String) expr.value()));
+        } else {
+            constant(expr.value(), OBJECT);
+        }
+    }
+
+    private void groupingExpr(Expr.Grouping expr) {
+        emit(expr.expression());
+    }
+
+    private void unaryExpr(Expr.Unary expr) {
+        if (expr.operator().type == TokenType.MINUS) {
+            boxed(expr);
+            return;
+        }
+        emit(expr.right());
+        invokeStatic("Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+        code.op(0x04, 1);                                       // iconst_1
+        code.op(0x82, -1);                                      // ixor
+        box("Z");
+    }
+
+    private void binaryExpr(Expr.Binary expr) {
+        switch (expr.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                boxed(expr);
+                return;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                Bytecode.Label isFalse = code.label();
+                Bytecode.Label end = code.label();
+                jumpIfFalse(expr, isFalse);
+                code.op(0x04, 1);                               // iconst_1
+                code.jump(0xa7, end);                           // goto
+                code.bind(isFalse);
+                code.op(0x03, 1);                               // iconst_0
+                code.bind(end);
+                box("Z");
+                return;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                emit(expr.left);
+                emit(expr.right);
+                invokeStatic("Interpreter", "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                if (expr.operator.type == TokenType.BANG_EQUAL) {
+                    code.op(0x04, 1);                           // iconst_1
+                    code.op(0x82, -1);                          // ixor
+                }
+                box("Z");
+                return;
+            default:
+                if (expr.numeric()) {
+                    boxed(expr);
+                    return;
+                }
+                emit(expr.left);
+                emit(expr.right);
+                token(expr.operator);
+                helper("add", "(Ljava/lang/Object;Ljava/lang/Object;LToken;)Ljava/lang/Object;");
+                return;
+        }
+    }
+
+    private void boxed(Expr expr) {
+        number(expr);
+        box("D");
+    }
+
+    private void box(String primitive) {
+        if (primitive.equals("D")) {
+            invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+        } else {
+            invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+        }
+    }
+
+    // Leaves the value of a numeric() expression (or an
+    // arithmetic one) on the stack as a primitive double.
+    private void number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            code.op(0x14, 2);                                   // ldc2_w
+            code.u2(file.doubleConstant((double) ((Expr.Literal) expr).value()));
+            return;
+        }
+        if (expr instanceof Expr.Grouping) {
+            number(((Expr.Grouping) expr).expression());
+            return;
+        }
+        if (expr instanceof Expr.Variable) {
+            // A local TypeInference has proved holds a number.
+            code.load(local(((Expr.Variable) expr).slot));
+            code.op(0xc0, 0);                                   // checkcast
+            code.u2(file.classRef("java/lang/Double"));
+            code.invoke(0xb6, file.method("java/lang/Double", "doubleValue", "()D"), 1, "()D");
+            return;
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.right().numeric()) {
+                number(unary.right());
+                code.op(0x77, 0);                               // dneg
+                return;
+            }
+            emit(unary.right());
+            token(unary.operator());
+            helper("negate", "(Ljava/lang/Object;LToken;)D");
+            return;
+        }
+
+        Expr.Binary binary = (Expr.Binary) expr;
+        if (binary.left.numeric() && binary.right.numeric()) {
+            number(binary.left);
+            number(binary.right);
+            switch (binary.operator.type) {
+                case MINUS: code.op(0x67, -2); break;           // dsub
+                case STAR:  code.op(0x6b, -2); break;           // dmul
+                case SLASH: code.op(0x6f, -2); break;           // ddiv
+                default:    code.op(0x63, -2); break;           // dadd
+            }
+            return;
+        }
+        // Both operands are evaluated before either is checked.
+        emit(binary.left);
+        emit(binary.right);
+        token(binary.operator);
+        String descriptor = "(Ljava/lang/Object;Ljava/lang/Object;LToken;)D";
+        switch (binary.operator.type) {
+            case MINUS: helper("subtract", descriptor); break;
+            case STAR:  helper("multiply", descriptor); break;
+            default:    helper("divide", descriptor); break;
+        }
+    }
+
+    private void jumpIfFalse(Expr condition, Bytecode.Label target) {
+        if (condition instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) condition;
+            TokenType type = binary.operator.type;
+            if (type == TokenType.GREATER || type == TokenType.GREATER_EQUAL ||
+                type == TokenType.LESS || type == TokenType.LESS_EQUAL) {
+                compare(binary, target);
+                return;
+            }
+        }
+        emit(condition);
+        invokeStatic("Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(0x99, target);                                // ifeq
+    }
+
+    private void compare(Expr.Binary expr, Bytecode.Label target) {
+        if (expr.left.numeric() && expr.right.numeric()) {
+            number(expr.left);
+            number(expr.right);
+            // NaN compares false either way, as it does in Java.
+            switch (expr.operator.type) {
+                case GREATER:
+                    code.op(0x97, -3);                          // dcmpl
+                    code.jump(0x9e, target);                    // ifle
+                    break;
+                case GREATER_EQUAL:
+                    code.op(0x97, -3);                          // dcmpl
+                    code.jump(0x9b, target);                    // iflt
+                    break;
+                case LESS:
+                    code.op(0x98, -3);                          // dcmpg
+                    code.jump(0x9c, target);                    // ifge
+                    break;
+                default:
+                    code.op(0x98, -3);                          // dcmpg
+                    code.jump(0x9d, target);                    // ifgt
+                    break;
+            }
+            return;
+        }
+        emit(expr.left);
+        emit(expr.right);
+        token(expr.operator);
+        String descriptor = "(Ljava/lang/Object;Ljava/lang/Object;LToken;)Z";
+        switch (expr.operator.type) {
+            case GREATER:       helper("greater", descriptor); break;
+            case GREATER_EQUAL: helper("greaterEqual", descriptor); break;
+            case LESS:          helper("less", descriptor); break;
+            default:            helper("lessEqual", descriptor); break;
+        }
+        code.jump(0x99, target);                                // ifeq
+    }
+
+    private void logicalExpr(Expr.Logical expr) {
+        Bytecode.Label end = code.label();
+        emit(expr.left());
+        code.op(0x59, 1);                                       // dup
+        invokeStatic("Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+        code.jump(expr.operator().type == TokenType.OR ? 0x9a : 0x99, end); // ifne / ifeq
+        code.op(0x57, -1);                                      // pop
+        emit(expr.right());
+        code.bind(end);
+    }
+
+    private void variable(Token name, int access, int slot, boolean cell) {
+        if (access == Expr.GLOBAL) {
+            globals();
+            code.push(slot);
+            token(name);
+            code.invoke(0xb6, file.method("Globals", "get", "(ILToken;)Ljava/lang/Object;"),
+                1, "(ILToken;)Ljava/lang/Object;");
+            return;
+        }
+        if (access == Expr.LOCAL) {
+            // Nothing inside a closure-free function captures its locals,
+            // so none of them is ever a Cell.
+            code.load(local(slot));
+            return;
+        }
+        code.load(CAPTURES);
+        code.push(slot);
+        code.op(0x32, -1);                                      // aaload
+        if (cell) helper("cellValue", "(Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+
+    private void variableExpr(Expr.Variable expr) {
+        variable(expr.name, expr.access, expr.slot, expr.cell);
+    }
+
+    private void thisExpr(Expr.This expr) {
+        variable(expr.keyword, expr.access, expr.slot, false);
+    }
+
+    private void assignExpr(Expr.Assign expr) {
+        emit(expr.value);
+        if (expr.access == Expr.GLOBAL) {
+            code.load(INTERPRETER);
+            code.push(expr.slot);
+            token(expr.name);
+            helper("assignGlobal", "(Ljava/lang/Object;LInterpreter;ILToken;)Ljava/lang/Object;");
+            return;
+        }
+        if (expr.access == Expr.LOCAL) {
+            code.op(0x59, 1);                                   // dup
+            code.store(local(expr.slot));
+            return;
+        }
+        // An assigned capture is always a Cell.
+        code.load(CAPTURES);
+        code.push(expr.slot);
+        code.op(0x32, -1);                                      // aaload
+        helper("assignCell", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+
+    private void inlineExpr(Expr.Inline expr) {
+        emit(expr.callee());
+        code.op(0x57, -1);                                      // pop
+        for (int i = 0; i < expr.arguments().size(); i++) {
+            emit(expr.arguments().get(i));
+            code.store(local(expr.firstSlot() + i));
+        }
+        emit(expr.body());
+    }
+
+    private void hoistedExpr(Expr.Hoisted expr) {
+        Bytecode.Label done = code.label();
+        code.load(local(expr.slot()));
+        code.op(0x59, 1);                                       // dup
+        constant(Expr.Hoisted.UNSET, OBJECT);
+        code.jump(0xa6, done);                                  // if_acmpne
+        code.op(0x57, -1);                                      // pop
+        emit(expr.expression());
+        code.op(0x59, 1);                                       // dup
+        code.store(local(expr.slot()));
+        code.bind(done);
+    }
+
+    private void getExpr(Expr.Get expr) {
+        emit(expr.object());
+        constant(expr.cache(), "PropertyCache");
+        token(expr.name());
+        helper("get", "(Ljava/lang/Object;LPropertyCache;LToken;)Ljava/lang/Object;");
+    }
+
+    private void setExpr(Expr.Set expr) {
+        emit(expr.object());
+        token(expr.name());
+        helper("fieldTarget", "(Ljava/lang/Object;LToken;)LLoxInstance;");
+        emit(expr.value());
+        constant(expr.cache(), "PropertyCache");
+        token(expr.name());
+        helper("set", "(LLoxInstance;Ljava/lang/Object;LPropertyCache;LToken;)Ljava/lang/Object;");
+    }
+
+    private void superExpr(Expr.Super expr) {
+        superMethod(expr);
+        variable(expr.keyword, expr.thisAccess, expr.thisSlot, false);
+        code.op(0xc0, 0);                                       // checkcast
+        code.u2(file.classRef("LoxInstance"));
+        code.invoke(0xb6, file.method("LoxFunction", "bind", "(LLoxInstance;)LLoxFunction;"),
+            1, "(LLoxInstance;)LLoxFunction;");
+    }
+
+    // Leaves the unbound method on the stack.
+    private void superMethod(Expr.Super expr) {
+        variable(expr.keyword, expr.access, expr.slot, false);
+        constant(expr.cache, "PropertyCache");
+        token(expr.method);
+        helper("superMethod", "(Ljava/lang/Object;LPropertyCache;LToken;)LLoxFunction;");
+    }
+
+    private void callExpr(Expr.Call expr) {
+        callExpr(expr, false);
+    }
+
+    // Tail calls go through the tail* helpers, which may return
+    // Interpreter.TAIL_CALL for LoxFunction.call to pick up.
+    private void callExpr(Expr.Call expr, boolean tail) {
+        if (expr.callee() instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee();
+            emit(get.object());
+            token(get.name());
+            helper("receiver", "(Ljava/lang/Object;LToken;)LLoxInstance;");
+            code.op(0x59, 1);                                   // dup
+            constant(get.cache(), "PropertyCache");
+            token(get.name());
+            helper("method", "(LLoxInstance;LPropertyCache;LToken;)Ljava/lang/Object;");
+            arguments(expr.arguments());
+            token(expr.paren());
+            code.load(INTERPRETER);
+            helper(tail ? "tailInvoke" : "invoke", "(LLoxInstance;Ljava/lang/Object;[Ljava/lang/Object;LToken;LInterpreter;)Ljava/lang/Object;");
+            return;
+        }
+        if (expr.callee() instanceof Expr.Super callee) {
+            variable(callee.keyword, callee.thisAccess, callee.thisSlot, false);
+            code.op(0xc0, 0);                                   // checkcast
+            code.u2(file.classRef("LoxInstance"));
+            superMethod(callee);
+            arguments(expr.arguments());
+            token(expr.paren());
+            code.load(INTERPRETER);
+            helper(tail ? "tailInvoke" : "invoke", "(LLoxInstance;Ljava/lang/Object;[Ljava/lang/Object;LToken;LInterpreter;)Ljava/lang/Object;");
+            return;
+        }
+        emit(expr.callee());
+        arguments(expr.arguments());
+        token(expr.paren());
+        code.load(INTERPRETER);
+        helper(tail ? "tailCall" : "call", "(Ljava/lang/Object;[Ljava/lang/Object;LToken;LInterpreter;)Ljava/lang/Object;");
+    }
+
+    private void arguments(List<Expr> arguments) {
+        code.push(arguments.size());
+        code.op(0xbd, 0);                                       // anewarray
+        code.u2(file.classRef(OBJECT));
+        for (int i = 0; i < arguments.size(); i++) {
+            code.op(0x59, 1);                                   // dup
+            code.push(i);
+            emit(arguments.get(i));
+            code.op(0x53, -3);                                  // aastore
+        }
+    }
+
+    // --------------------------------------------------------------- runtime
+    // Called from generated code. Errors match the Interpreter's.
+
+    static double negate(Object operand, Token operator) {
+        if (operand instanceof Double) return -(double) operand;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    private static void checkNumbers(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static double subtract(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left - (double) right;
+    }
+
+    static double multiply(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left * (double) right;
+    }
+
+    static double divide(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left / (double) right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left > (double) right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left >= (double) right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left < (double) right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        checkNumbers(left, right, operator);
+        return (double) left <= (double) right;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        if (left instanceof CharSequence && right instanceof CharSequence) {
+            return Rope.concat((CharSequence) left, (CharSequence) right);
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object assignGlobal(Object value, Interpreter interpreter, int index, Token name) {
+        interpreter.globals.assign(index, name, value);
+        return value;
+    }
+
+    static Object cellValue(Object cell) {
+        return ((Environment.Cell) cell).value;
+    }
+
+    static Object assignCell(Object value, Object cell) {
+        ((Environment.Cell) cell).value = value;
+        return value;
+    }
+
+    static Object get(Object object, PropertyCache cache, Token name) {
+        if (object instanceof LoxInstance) {
+            return cache.get((LoxInstance) object, name);
+        }
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    static LoxInstance fieldTarget(Object object, Token name) {
+        if (object instanceof LoxInstance) return (LoxInstance) object;
+        throw new RuntimeError(name, "Only instances have fields.");
+    }
+
+    static Object set(LoxInstance instance, Object value, PropertyCache cache, Token name) {
+        cache.set(instance, name, value);
+        return value;
+    }
+
+    static LoxInstance receiver(Object object, Token name) {
+        if (object instanceof LoxInstance) return (LoxInstance) object;
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    // The unbound method, or the field's value when there is no such method.
+    static Object method(LoxInstance instance, PropertyCache cache, Token name) {
+        LoxFunction method = cache.findMethod(instance, name);
+        if (method != null) return method;
+        return cache.get(instance, name);
+    }
+
+    static LoxFunction superMethod(Object superclass, PropertyCache cache, Token name) {
+        LoxFunction method = cache.findSuperMethod((LoxClass) superclass, name);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        return method;
+    }
+
+    static Object invoke(LoxInstance instance, Object callee, Object[] arguments,
+                         Token paren, Interpreter interpreter) {
+        // Unbound methods never escape into Lox values, so this is a method
+        // found by method() rather than a function stored in a field.
+        if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+            LoxFunction method = (LoxFunction) callee;
+            List<Object> values = Arrays.asList(arguments);
+            checkArity(paren, method, values);
+            interpreter.callSite = paren;
+            return method.call(interpreter, instance, values);
+        }
+        return call(callee, arguments, paren, interpreter);
+    }
+
+    static Object call(Object callee, Object[] arguments, Token paren, Interpreter interpreter) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren, "Can only call functions and classes.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        List<Object> values = Arrays.asList(arguments);
+        checkArity(paren, function, values);
+        interpreter.callSite = paren;
+        return function.call(interpreter, values);
+    }
+
+    static Object tailInvoke(LoxInstance instance, Object callee, Object[] arguments,
+                             Token paren, Interpreter interpreter) {
+        if (callee instanceof LoxFunction && ((LoxFunction) callee).isUnboundMethod()) {
+            LoxFunction method = (LoxFunction) callee;
+            List<Object> values = Arrays.asList(arguments);
+            checkArity(paren, method, values);
+            return interpreter.tailCall(method, instance, values);
+        }
+        return tailCall(callee, arguments, paren, interpreter);
+    }
+
+    static Object tailCall(Object callee, Object[] arguments, Token paren, Interpreter interpreter) {
+        if (!(callee instanceof LoxFunction)) return call(callee, arguments, paren, interpreter);
+        LoxFunction function = (LoxFunction) callee;
+        List<Object> values = Arrays.asList(arguments);
+        checkArity(paren, function, values);
+        return interpreter.tailCall(function, function.receiver(), values);
+    }
+
+    private static void checkArity(Token paren, LoxCallable function, List<Object> arguments) {
+        if (arguments.size() != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                function.arity() + " arguments but got " +
+                arguments.size() + ".");
+        }
+    }
+
+    // ------------------------------------------------------------- bytecode
+
+    // A method body under construction, with the operand stack depth tracked
+    // by hand so that max_stack comes out right.
+    private static class Bytecode {
+        static class Label {
+            int position = -1;
+            int stack = -1;
+            final List<Integer> jumps = new ArrayList<>();
+        }
+
+        private byte[] bytes = new byte[256];
+        int length = 0;
+        int stack = 0;
+        int maxStack = 0;
+        int maxLocals = FIRST_LOCAL;
+        boolean reachable = true;
+
+        void u1(int value) {
+            if (length == bytes.length) bytes = Arrays.copyOf(bytes, length * 2);
+            bytes[length++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void op(int opcode, int effect) {
+            u1(opcode);
+            adjust(effect);
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1);                            // iconst_<n>
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10, 1);                                    // bipush
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11, 1);                                    // sipush
+                u2(value);
+            } else {
+                throw new Unsupported("large constant");
+            }
+        }
+
+        void load(int local) {
+            local(0x19, local, 1);                              // aload
+        }
+
+        void store(int local) {
+            local(0x3a, local, -1);                             // astore
+        }
+
+        private void local(int opcode, int local, int effect) {
+            if (local > 255) {
+                op(0xc4, 0);                                    // wide
+                op(opcode, effect);
+                u2(local);
+            } else {
+                op(opcode, effect);
+                u1(local);
+            }
+            maxLocals = Math.max(maxLocals, local + 1);
+        }
+
+        // 'receiver' is 1 for instance methods and 0 for static ones.
+        void invoke(int opcode, int method, int receiver, String descriptor) {
+            int arguments = argumentSize(descriptor);
+            op(opcode, returnSize(descriptor) - arguments - receiver);
+            u2(method);
+            if (opcode == 0xb9) {                               // invokeinterface
+                u1(receiver + arguments);
+                u1(0);
+            }
+        }
+
+        private static int argumentSize(String descriptor) {
+            int size = 0;
+            int i = 1;
+            while (descriptor.charAt(i) != ')') {
+                char c = descriptor.charAt(i);
+                if (c == 'D' || c == 'J') {
+                    size += 2;
+                    i++;
+                } else {
+                    while (descriptor.charAt(i) == '[') i++;
+                    if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+                    size++;
+                    i++;
+                }
+            }
+            return size;
+        }
+
+        private static int returnSize(String descriptor) {
+            char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+            if (c == 'V') return 0;
+            return c == 'D' || c == 'J' ? 2 : 1;
+        }
+
+        Label label() {
+            return new Label();
+        }
+
+        // Emits a goto or a conditional branch, which pops its int operand,
+        // or both references for if_acmpeq and if_acmpne.
+        void jump(int opcode, Label target) {
+            int at = length;
+            op(opcode, opcode == 0xa7 ? 0 : opcode == 0xa5 || opcode == 0xa6 ? -2 : -1);
+            target.stack = stack;
+            target.jumps.add(at);
+            u2(0);
+            if (target.position >= 0) patch(at, target.position);
+            if (opcode == 0xa7) reachable = false;
+        }
+
+        void bind(Label label) {
+            label.position = length;
+            if (!label.jumps.isEmpty()) {
+                if (!reachable) stack = label.stack;
+                reachable = true;
+            }
+            for (int at : label.jumps) {
+                patch(at, label.position);
+            }
+        }
+
+        private void patch(int at, int position) {
+            int offset = position - at;
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new Unsupported("method too large");
+            }
+            bytes[at + 1] = (byte) (offset >> 8);
+            bytes[at + 2] = (byte) offset;
+        }
+
+        byte[] toArray() {
+            if (length > 65535) throw new Unsupported("method too large");
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    // The constant pool and the surrounding class: a final class named
+    // LoxJit implementing Code, with a 'k' field for the constants.
+    private static class ClassFile {
+        final String name = "LoxJit";
+        private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int count = 1;
+
+        private int entry(String key, int slots, Entry writer) {
+            Integer index = entries.get(key);
+            if (index != null) return index;
+            try {
+                writer.write(pool);
+            } catch (IOException e) {
+                throw new Unsupported(e.getMessage());
+            }
+            int created = count;
+            count += slots;
+            if (count > 65535) throw new Unsupported("constant pool overflow");
+            entries.put(key, created);
+            return created;
+        }
+
+        private interface Entry {
+            void write(DataOutputStream out) throws IOException;
+        }
+
+        int utf8(String value) {
+            return entry("U" + value, 1, out -> {
+                out.writeByte(1);
+                out.writeUTF(value);
+            });
+        }
+
+        int classRef(String internalName) {
+            int nameIndex = utf8(internalName);
+            return entry("C" + internalName, 1, out -> {
+                out.writeByte(7);
+                out.writeShort(nameIndex);
+            });
+        }
+
+        int string(String value) {
+            int valueIndex = utf8(value);
+            return entry("S" + value, 1, out -> {
+                out.writeByte(8);
+                out.writeShort(valueIndex);
+            });
+        }
+
+        int doubleConstant(double value) {
+            return entry("D" + Double.doubleToRawLongBits(value), 2, out -> {
+                out.writeByte(6);
+                out.writeDouble(value);
+            });
+        }
+
+        private int nameAndType(String member, String descriptor) {
+            int nameIndex = utf8(member);
+            int descriptorIndex = utf8(descriptor);
+            return entry("N" + member + ":" + descriptor, 1, out -> {
+                out.writeByte(12);
+                out.writeShort(nameIndex);
+                out.writeShort(descriptorIndex);
+            });
+        }
+
+        private int member(int tag, String owner, String member, String descriptor) {
+            int ownerIndex = classRef(owner);
+            int typeIndex = nameAndType(member, descriptor);
+            return entry(tag + owner + "." + member + ":" + descriptor, 1, out -> {
+                out.writeByte(tag);
+                out.writeShort(ownerIndex);
+                out.writeShort(typeIndex);
+            });
+        }
+
+        int field(String owner, String member, String descriptor) {
+            return member(9, owner, member, descriptor);
+        }
+
+        int method(String owner, String member, String descriptor) {
+            return member(10, owner, member, descriptor);
+        }
+
+        int interfaceMethod(String owner, String member, String descriptor) {
+            return member(11, owner, member, descriptor);
+        }
+
+        byte[] write(Bytecode call) {
+            int thisClass = classRef(name);
+            int superClass = classRef(OBJECT);
+            int codeInterface = classRef("JitCompiler$Code");
+            int kName = utf8("k");
+            int kType = utf8("[Ljava/lang/Object;");
+            int kField = field(name, "k", "[Ljava/lang/Object;");
+            int objectInit = method(OBJECT, "<init>", "()V");
+            int init = utf8("<init>");
+            int initType = utf8("([Ljava/lang/Object;)V");
+            int callName = utf8("call");
+            int callType = utf8(CALL);
+            int codeName = utf8("Code");
+
+            // Constructor: super(); this.k = k;
+            Bytecode constructor = new Bytecode();
+            constructor.load(THIS);
+            constructor.op(0xb7, -1);                           // invokespecial
+            constructor.u2(objectInit);
+            constructor.load(THIS);
+            constructor.load(1);
+            constructor.op(0xb5, -2);                           // putfield
+            constructor.u2(kField);
+            constructor.op(0xb1, 0);                            // return
+            constructor.maxLocals = 2;
+            constructor.maxStack = 2;
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(count);
+                poolBytes.writeTo(out);
+                out.writeShort(0x0030);                         // final, super
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(1);
+                out.writeShort(codeInterface);
+
+                out.writeShort(1);
+                out.writeShort(0x0010);                         // final
+                out.writeShort(kName);
+                out.writeShort(kType);
+                out.writeShort(0);
+
+                out.writeShort(2);
+                writeMethod(out, 0x0001, init, initType, codeName, constructor);
+                writeMethod(out, 0x0001, callName, callType, codeName, call);
+                out.writeShort(0);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new Unsupported(e.getMessage());
+            }
+        }
+
+        private static void writeMethod(DataOutputStream out, int access, int name, int type,
+                                        int codeName, Bytecode code) throws IOException {
+            byte[] body = code.toArray();
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + body.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0);                                  // exception table
+            out.writeShort(0);                                  // attributes
+        }
+    }
+}
@@ -1,27 +1,34 @@
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class LoxClass implements LoxCallable {
     final String name;
     final LoxClass superclass;
+    // Own methods merged over everything inherited, built once when the class
+    // is created and never changed afterwards, so any lookup is one probe.
     private final Map<String, LoxFunction> methods;
+    private final LoxFunction initializer;
+    // Every instance starts with this shape, so a shape identifies its class.
+    final Shape rootShape = new Shape();
+    // Field array size new instances start with, learned from earlier ones.
+    int fieldCapacity = 0;
 
     LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-          return methods.get(name);
-        }
-
-        if (superclass != null) {
-          return superclass.findMethod(name);
-        }
-    
-        return null;
+        return methods.get(name);
     }
 
     LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
-        this.methods = methods;
         this.name = name;
         this.superclass = superclass;
+
+        Map<String, LoxFunction> flattened = new HashMap<>();
+        if (superclass != null) {
+            flattened.putAll(superclass.methods);
+        }
+        flattened.putAll(methods);
+        this.methods = flattened;
+        this.initializer = flattened.get("init");
     }
 
     @Override
@@ -33,9 +40,8 @@ public class LoxClass implements LoxCallable {
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
 
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.call(interpreter, instance, arguments);
         }
 
         return instance;
@@ -43,7 +49,6 @@ public class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
@@ -2,36 +2,117 @@ import java.util.List;
 
 public class LoxFunction implements LoxCallable{
     private final Stmt.Function declaration;
-    private final Environment closure; 
+    // The enclosing variables this function uses, copied (or shared through
+    // Cells) when it was created, as listed in declaration.captures.
+    private final Object[] captures;
     private final boolean isInitializer;
+    // Methods take their receiver in slot 0 of the call frame.
+    private final boolean isMethod;
+    // The instance a method was bound to, or null.
+    private final LoxInstance receiver;
+    // The body as compiled by the closure engine, or null when the
+    // Interpreter walks declaration.body itself.
+    private final ClosureCompiler.Exec body;
+    // A function that declares nothing, not even a parameter, has a frame
+    // with no slots. Only its captures are in it, so every call can share
+    // this one. Null for everything else, which gets a new frame per call.
+    private final Environment emptyFrame;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    LoxFunction(Stmt.Function declaration, Object[] captures, boolean isInitializer) {
+        this(declaration, captures, isInitializer, false, null, null);
+    }
+
+    LoxFunction(Stmt.Function declaration, Object[] captures, boolean isInitializer,
+                boolean isMethod, ClosureCompiler.Exec body) {
+        this(declaration, captures, isInitializer, isMethod, null, body);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Object[] captures, boolean isInitializer,
+                        boolean isMethod, LoxInstance receiver, ClosureCompiler.Exec body) {
         this.isInitializer = isInitializer;
         this.declaration = declaration; 
-        this.closure = closure;
+        this.captures = captures;
+        this.isMethod = isMethod;
+        this.receiver = receiver;
+        this.body = body;
+        this.emptyFrame = declaration.slotCount == 0 ? new Environment(0, captures) : null;
+    }
+
+    static LoxFunction method(Stmt.Function declaration, Object[] captures, boolean isInitializer) {
+        return new LoxFunction(declaration, captures, isInitializer, true, null, null);
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer);
+        return new LoxFunction(declaration, captures, isInitializer, true, instance, body);
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure); // Create a new environment for the function call.
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i)); // Define each parameter in the environment.
+        return call(interpreter, receiver, arguments);
+    }
+
+    boolean isUnboundMethod() {
+        return isMethod && receiver == null;
+    }
+
+    LoxInstance receiver() {
+        return receiver;
+    }
+
+    // Calls a method on 'instance' without binding it first. When the body
+    // ends in a tail call, that call runs here in the same Java frame, so
+    // tail recursion needs no Java stack.
+    Object call(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+        if (interpreter.depth == Interpreter.MAX_DEPTH) {
+            throw new RuntimeError(interpreter.callSite, "Stack overflow.");
         }
+        interpreter.depth++;
         try {
-            interpreter.executeBlock(declaration.body, environment); 
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this"); // If it's an initializer, return the instance.
-            return returnValue.value; 
+            LoxFunction function = this;
+            while (true) {
+                Object result = function.run(interpreter, instance, arguments);
+                if (result != Interpreter.TAIL_CALL) return result;
+                function = interpreter.tailFunction;
+                instance = interpreter.tailReceiver;
+                arguments = interpreter.tailArguments;
+            }
+        } catch (StackOverflowError error) {
+            // The thread stack ran out before the depth budget did, say on a
+            // machine that would not give Main the stack it asked for.
+            throw new RuntimeError(interpreter.callSite, "Stack overflow.");
+        } finally {
+            interpreter.depth--;
+        }
+    }
+
+    private Object run(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+        if (declaration.compiled == null && ++declaration.calls == JitCompiler.THRESHOLD) {
+            declaration.compiled = JitCompiler.compile(declaration, isMethod);
+        }
+        if (declaration.compiled != null) {
+            Object result = declaration.compiled.call(captures, instance, arguments, interpreter);
+            return isInitializer ? instance : result;
+        }
+
+        Environment environment = emptyFrame != null
+            ? emptyFrame
+            : new Environment(declaration.slotCount, captures);
+        int slot = 0;
+        if (isMethod) {
+            environment.slots[slot++] = instance;
+        }
+        for (int i = 0; i < arguments.size(); i++) {
+            environment.slots[slot++] = arguments.get(i); // Parameters follow, in order.
+        }
+        for (int param : declaration.cellParams) {
+            environment.define(param, true, environment.slots[param]);
         }
+        Completion completion = body != null
+            ? body.exec(environment)
+            : interpreter.executeBlock(declaration.body, environment);
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+        if (isInitializer) return instance; // If it's an initializer, return the instance.
+        return completion == Completion.RETURN ? interpreter.returnValue : null;
     }
 
     @Override
@@ -1,11 +1,17 @@
-import java.util.Map;
+import java.util.Arrays;
 
 public class LoxInstance {
-    private final LoxClass klass;
-    private final Map<String, Object> fields = new java.util.HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LoxClass klass;
+    // Read directly by PropertyCache once it knows the layout.
+    Shape shape;
+    Object[] fields;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
+        this.shape = klass.rootShape;
+        this.fields = klass.fieldCapacity == 0 ? NO_FIELDS : new Object[klass.fieldCapacity];
     }
 
     @Override
@@ -14,12 +20,29 @@ public class LoxInstance {
     }   
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.indexOf(name.lexeme);
+        if (slot < 0) {
+            addField(shape.withField(name.lexeme), shape.fieldCount, value);
+            return;
+        }
+        fields[slot] = value;
+    }
+
+    // Moves the instance to 'next', whose new field lives in 'slot'.
+    void addField(Shape next, int slot, Object value) {
+        if (slot == fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, slot * 2));
+            // Later instances of the class start out big enough.
+            if (fields.length > klass.fieldCapacity) klass.fieldCapacity = fields.length;
+        }
+        shape = next;
+        fields[slot] = value;
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int slot = shape.indexOf(name.lexeme);
+        if (slot >= 0) {
+            return fields[slot];
         }
 
         LoxFunction method = klass.findMethod(name.lexeme);
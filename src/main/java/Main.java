@@ -5,6 +5,13 @@ import java.util.List;
 
 public class Main {
     public static int EXIT_CODE = 0;
+    // Cleared by --no-optimize, to run the tree exactly as parsed.
+    private static boolean optimize = true;
+
+    // Java stack reserved per Lox call. A cold tree-walked call takes a bit
+    // over 2KB; this leaves room for deeply nested expressions too.
+    private static final long STACK_PER_CALL = 4096;
+    private static final long MIN_STACK = 1 << 20;
 
     void parseLine(String source) {
         try {
@@ -61,7 +68,7 @@ public class Main {
         return evaluate.toString();
     }
 
-    void runLine(String source) {
+    void runLine(String source, String engine) {
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
         try{
@@ -69,7 +76,7 @@ public class Main {
             Interpreter interpreter = new Interpreter();
         
             List <Stmt> statements = pa.parse();
-            Resolver resolver = new Resolver(interpreter);
+            Resolver resolver = new Resolver(interpreter.globals);
             resolver.resolve(statements);
 
             if (EXIT_CODE == 65) {
@@ -79,7 +86,20 @@ public class Main {
             if (EXIT_CODE == 70) {
                 return;
             }
-            interpreter.interpret(statements);
+            if (optimize) {
+                statements = new Optimizer(interpreter.globals).optimize(statements);
+            }
+            if (engine.equals("vm")) {
+                VM.Function script = new Compiler().compile(statements);
+                if (EXIT_CODE == 65) {
+                    return;
+                }
+                new VM().interpret(script);
+            } else if (engine.equals("closure")) {
+                new ClosureCompiler(interpreter).interpret(statements);
+            } else {
+                interpreter.interpret(statements);
+            }
 
         } catch (RuntimeError error) {
             System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
@@ -97,7 +117,22 @@ public class Main {
         }
 
         String command = args[0];
-        String filename = args[1];
+        String filename = args[args.length - 1];
+        String engine = "tree";
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].startsWith("--engine=")) {
+                engine = args[i].substring("--engine=".length());
+            } else if (args[i].equals("--no-optimize")) {
+                optimize = false;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+        if (!engine.equals("tree") && !engine.equals("vm") && !engine.equals("closure")) {
+            System.err.println("Unknown engine: " + engine + " (expected tree, vm or closure)");
+            System.exit(1);
+        }
 
         String fileContents = "";
         try {
@@ -109,6 +144,53 @@ public class Main {
         }
 
         // --------------------------- START OF INTERPRETER --------------------------
+        // Lox calls nest Java calls, so the interpreter runs on its own thread
+        // with a stack big enough for Interpreter.MAX_DEPTH of them. The
+        // memory is only reserved; pages are touched as the recursion goes.
+        final String source = fileContents;
+        final String selected = engine;
+        Thread worker = startWorker(() -> dispatch(command, source, selected));
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //System.out.println("Exit code: " + EXIT_CODE);
+        System.exit(EXIT_CODE);
+    }
+
+    // Starts the interpreter thread. When the OS won't reserve the stack the
+    // depth budget asks for, halves it until it will. Deep recursion then
+    // runs out of stack before the budget and still ends in "Stack overflow.".
+    private static Thread startWorker(Runnable body) {
+        long wanted = STACK_PER_CALL * Interpreter.MAX_DEPTH;
+        long stackSize = wanted;
+        while (true) {
+            Thread worker = new Thread(null, body, "lox", stackSize);
+            // An error nothing caught (an OutOfMemoryError, a bug) would
+            // otherwise end the thread and leave EXIT_CODE at 0. Exit 1, as
+            // the JVM does when the main thread dies.
+            worker.setUncaughtExceptionHandler((thread, error) -> {
+                System.err.print("Exception in thread \"" + thread.getName() + "\" ");
+                error.printStackTrace();
+                EXIT_CODE = 1;
+            });
+            try {
+                worker.start();
+            } catch (OutOfMemoryError e) {
+                if (stackSize <= MIN_STACK) throw e;
+                stackSize = Math.max(stackSize / 2, MIN_STACK);
+                continue;
+            }
+            if (stackSize < wanted) {
+                System.err.println("Could not reserve the stack for lox.stack.depth=" +
+                    Interpreter.MAX_DEPTH + "; running with " + (stackSize >> 20) + "MB.");
+            }
+            return worker;
+        }
+    }
+
+    private static void dispatch(String command, String fileContents, String engine) {
         Main obj = new Main();
         switch (command) {
             case "tokenize":
@@ -121,12 +203,10 @@ public class Main {
                 obj.evaluateLine(fileContents);
                 break;
             case "run":
-                obj.runLine(fileContents);
+                obj.runLine(fileContents, engine);
                 break;
             default:
                 break;
         }
-        //System.out.println("Exit code: " + EXIT_CODE);
-        System.exit(EXIT_CODE);
     }
 }
@@ -0,0 +1,627 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Simplifies the resolved tree before any engine sees it: folds operators
+// whose operands are literals, drops groupings, prunes if/while/logical
+// branches decided by a literal, and replaces reads of variables that are
+// initialized with a literal and never assigned by that literal.
+//
+// Where there is a frame to hold them, it also inlines calls to small
+// top-level functions (Expr.Inline) and keeps loop-invariant expressions
+// across iterations (Expr.Hoisted). Both take extra slots at the end of
+// the frame, past the ones the Resolver handed out.
+//
+// A class-hierarchy analysis marks method lookups that can only ever find
+// one method, so their PropertyCache keeps it (see 'direct' there).
+//
+// An operation that would fail at runtime (-"a", 1 + nil) is left alone, so
+// it still fails there, on its own line. Nodes are rebuilt rather than
+// changed, and rebuilt nodes keep the Resolver's annotations.
+public class Optimizer {
+    // Bodies of at most this many nodes are inlined.
+    private static final int INLINE_SIZE = 12;
+    // Literals of the current function's never-assigned locals, by slot.
+    private Map<Integer, Expr.Literal> locals = new HashMap<>();
+    // Literals of never-assigned globals declared so far by top-level code,
+    // by Globals index. Only top-level code outside functions reads them:
+    // a function may run before the declaration has.
+    private final Map<Integer, Expr.Literal> globals = new HashMap<>();
+    private final Set<Integer> assignedGlobals = new HashSet<>();
+    private final Map<String, Integer> globalDeclarations = new HashMap<>();
+    private int functionDepth = 0;
+    private final Globals table;
+
+    // Top-level functions whose body is a single small 'return', declared
+    // once and never assigned, by Globals index.
+    private final Map<Integer, Stmt.Function> inlinable = new HashMap<>();
+    // Functions being optimized or inlined, which are not inlined again.
+    private final List<Stmt.Function> inlining = new ArrayList<>();
+    // While optimizing an inlined body, the slot its first parameter is in.
+    private int parameterBase = -1;
+
+    // The frame being optimized, or null in top-level code outside any
+    // block or loop, which runs without one.
+    private Frame frame = null;
+    // The loops of the current function that hoist, outermost first.
+    private List<Loop> loops = new ArrayList<>();
+    // Where scan() puts the local slots it sees written, when not null.
+    private Set<Integer> writes = null;
+
+    // Every class declaration in the program, and every name a field is
+    // stored under.
+    private final List<Stmt.Class> classes = new ArrayList<>();
+    private final Set<String> storedFields = new HashSet<>();
+    // Top-level classes declared once and never assigned, which are created
+    // at most once and so have a single LoxFunction per method, by name.
+    private final Map<String, Stmt.Class> fixedClasses = new HashMap<>();
+    // Method names every class has, all from one declaration in a fixed class.
+    private final Set<String> directMethods = new HashSet<>();
+    // Whether "super" in the class being optimized is a fixed class.
+    private boolean fixedSuper = false;
+
+    private static final class Frame {
+        int size;
+
+        Frame(int size) {
+            this.size = size;
+        }
+    }
+
+    private static final class Loop {
+        final Set<Integer> written = new HashSet<>();
+        final List<Integer> hoisted = new ArrayList<>();
+    }
+
+    Optimizer(Globals table) {
+        this.table = table;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        new TypeInference().infer(statements);
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var var) count(var.name);
+            if (statement instanceof Stmt.Function function) count(function.name);
+            if (statement instanceof Stmt.Class klass) count(klass.name);
+            scan(statement);
+        }
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Function function && inlinable(function)) {
+                inlinable.put(table.indexOf(function.name.lexeme), function);
+            }
+            if (statement instanceof Stmt.Class klass && fixed(klass.name)) {
+                fixedClasses.put(klass.name.lexeme, klass);
+            }
+        }
+        analyzeHierarchy();
+        return statements(statements);
+    }
+
+    private boolean fixed(Token name) {
+        return globalDeclarations.get(name.lexeme) == 1 &&
+            !assignedGlobals.contains(table.indexOf(name.lexeme));
+    }
+
+    // A name has one target when exactly one class declares it, that class
+    // is fixed, and every class inherits from it.
+    private void analyzeHierarchy() {
+        Map<String, List<Stmt.Class>> declarers = new HashMap<>();
+        for (Stmt.Class klass : classes) {
+            for (Stmt.Function method : klass.methods) {
+                declarers.computeIfAbsent(method.name.lexeme, name -> new ArrayList<>()).add(klass);
+            }
+        }
+        for (Map.Entry<String, List<Stmt.Class>> entry : declarers.entrySet()) {
+            List<Stmt.Class> owners = entry.getValue();
+            if (owners.size() != 1 || fixedClasses.get(owners.get(0).name.lexeme) != owners.get(0)) {
+                continue;
+            }
+            if (classes.stream().allMatch(klass -> inherits(klass, owners.get(0)))) {
+                directMethods.add(entry.getKey());
+            }
+        }
+    }
+
+    // Only follows superclasses that are fixed classes. The step limit stops
+    // at cycles, which fail at runtime anyway.
+    private boolean inherits(Stmt.Class klass, Stmt.Class ancestor) {
+        for (int steps = 0; klass != null && steps <= classes.size(); steps++) {
+            if (klass == ancestor) return true;
+            klass = fixedSuperclass(klass);
+        }
+        return false;
+    }
+
+    private Stmt.Class fixedSuperclass(Stmt.Class klass) {
+        if (klass.superclass == null || klass.superclass.access != Expr.GLOBAL) return null;
+        return fixedClasses.get(klass.superclass.name.lexeme);
+    }
+
+    private boolean inlinable(Stmt.Function function) {
+        int index = table.indexOf(function.name.lexeme);
+        return globalDeclarations.get(function.name.lexeme) == 1 &&
+            !assignedGlobals.contains(index) &&
+            function.body.size() == 1 &&
+            function.body.get(0) instanceof Stmt.Return ret &&
+            ret.value() != null && size(ret.value()) <= INLINE_SIZE;
+    }
+
+    private static int size(Expr expr) {
+        return switch (expr) {
+            case Expr.Binary binary -> 1 + size(binary.left) + size(binary.right);
+            case Expr.Grouping grouping -> size(grouping.expression());
+            case Expr.Unary unary -> 1 + size(unary.right());
+            case Expr.Assign assign -> 1 + size(assign.value);
+            case Expr.Logical logical -> 1 + size(logical.left()) + size(logical.right());
+            case Expr.Call call -> 1 + size(call.callee()) +
+                call.arguments().stream().mapToInt(Optimizer::size).sum();
+            case Expr.Get get -> 1 + size(get.object());
+            case Expr.Set set -> 1 + size(set.object()) + size(set.value());
+            default -> 1;
+        };
+    }
+
+    private void count(Token name) {
+        globalDeclarations.merge(name.lexeme, 1, Integer::sum);
+    }
+
+    // ---------------------------------------------------------------- scan
+
+    // Finds every global that is assigned anywhere in the program, and the
+    // local slots assigned or declared, for 'writes'.
+    private void scan(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Expression expression -> scan(expression.expression());
+            case Stmt.Print print -> scan(print.expression());
+            case Stmt.Var var -> {
+                written(var.slot);
+                scan(var.initializer);
+            }
+            case Stmt.Block block -> block.statements.forEach(this::scan);
+            case Stmt.If ifStmt -> {
+                scan(ifStmt.condition());
+                scan(ifStmt.thenBranch());
+                if (ifStmt.elseBranch() != null) scan(ifStmt.elseBranch());
+            }
+            case Stmt.While loop -> {
+                scan(loop.condition);
+                scan(loop.body);
+            }
+            case Stmt.For loop -> {
+                if (loop.initializer != null) scan(loop.initializer);
+                scan(loop.condition);
+                scan(loop.increment);
+                scan(loop.body);
+            }
+            case Stmt.Function function -> {
+                written(function.slot);
+                function.body.forEach(this::scan);
+            }
+            case Stmt.Return ret -> scan(ret.value());
+            case Stmt.Class klass -> {
+                written(klass.slot);
+                classes.add(klass);
+                klass.methods.forEach(this::scan);
+            }
+            case Stmt.Break breakStmt -> { }
+            case Stmt.Continue continueStmt -> { }
+        }
+    }
+
+    private void scan(Expr expr) {
+        switch (expr) {
+            case null -> { }
+            case Expr.Binary binary -> {
+                scan(binary.left);
+                scan(binary.right);
+            }
+            case Expr.Grouping grouping -> scan(grouping.expression());
+            case Expr.Literal literal -> { }
+            case Expr.Unary unary -> scan(unary.right());
+            case Expr.Variable variable -> { }
+            case Expr.Assign assign -> {
+                if (assign.access == Expr.GLOBAL) {
+                    assignedGlobals.add(table.indexOf(assign.name.lexeme));
+                } else if (assign.access == Expr.LOCAL) {
+                    written(assign.slot);
+                }
+                scan(assign.value);
+            }
+            case Expr.Logical logical -> {
+                scan(logical.left());
+                scan(logical.right());
+            }
+            case Expr.Call call -> {
+                scan(call.callee());
+                call.arguments().forEach(this::scan);
+            }
+            case Expr.Get get -> scan(get.object());
+            case Expr.Set set -> {
+                storedFields.add(set.name().lexeme);
+                scan(set.object());
+                scan(set.value());
+            }
+            case Expr.This thisExpr -> { }
+            case Expr.Super superExpr -> { }
+            case Expr.Inline inline -> { }
+            case Expr.Hoisted hoisted -> { }
+        }
+    }
+
+    private void written(int slot) {
+        if (writes != null && slot != Expr.UNRESOLVED) writes.add(slot);
+    }
+
+    // ----------------------------------------------------------- statements
+
+    private List<Stmt> statements(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            Stmt optimized = optimize(statement);
+            if (optimized instanceof Stmt.Block block && block.statements.isEmpty()) continue;
+            result.add(optimized);
+        }
+        return result;
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return switch (stmt) {
+            case Stmt.Expression expression -> new Stmt.Expression(optimize(expression.expression()));
+            case Stmt.Print print -> new Stmt.Print(optimize(print.expression()));
+            case Stmt.Var var -> varStmt(var);
+            case Stmt.Block block -> blockStmt(block);
+            case Stmt.If ifStmt -> ifStmt(ifStmt);
+            case Stmt.While loop -> whileStmt(loop);
+            case Stmt.For loop -> forStmt(loop);
+            case Stmt.Function function -> functionStmt(function);
+            case Stmt.Return ret -> new Stmt.Return(ret.keyword(), optimize(ret.value()));
+            case Stmt.Class klass -> classStmt(klass);
+            case Stmt.Break breakStmt -> breakStmt;
+            case Stmt.Continue continueStmt -> continueStmt;
+        };
+    }
+
+    private Stmt varStmt(Stmt.Var stmt) {
+        Expr initializer = optimize(stmt.initializer);
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.cell = stmt.cell;
+        var.assigned = stmt.assigned;
+
+        Expr.Literal value = initializer == null ? new Expr.Literal(null)
+            : initializer instanceof Expr.Literal literal ? literal : null;
+        if (stmt.slot == Expr.UNRESOLVED) {
+            int index = table.indexOf(stmt.name.lexeme);
+            if (value != null && functionDepth == 0 && !assignedGlobals.contains(index) &&
+                globalDeclarations.getOrDefault(stmt.name.lexeme, 0) == 1) {
+                globals.put(index, value);
+            }
+        } else if (value != null && !stmt.assigned) {
+            locals.put(stmt.slot, value);
+        } else {
+            // The slot may still hold a constant from an earlier sibling block.
+            locals.remove(stmt.slot);
+        }
+        return var;
+    }
+
+    private Stmt blockStmt(Stmt.Block stmt) {
+        if (frame != null) return new Stmt.Block(statements(stmt.statements));
+        // Outermost top-level block, which runs in a frame of its own.
+        frame = new Frame(stmt.slotCount);
+        Stmt.Block block = new Stmt.Block(statements(stmt.statements));
+        block.slotCount = frame.size;
+        frame = null;
+        return block;
+    }
+
+    private Stmt ifStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition());
+        Stmt elseBranch = stmt.elseBranch();
+        if (condition instanceof Expr.Literal literal) {
+            if (Interpreter.isTruthy(literal.value())) return optimize(stmt.thenBranch());
+            return elseBranch == null ? new Stmt.Block(List.of()) : optimize(elseBranch);
+        }
+        return new Stmt.If(condition, optimize(stmt.thenBranch()),
+            elseBranch == null ? null : optimize(elseBranch));
+    }
+
+    private Stmt whileStmt(Stmt.While stmt) {
+        Loop enclosing = enterLoop(stmt);
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal literal && !Interpreter.isTruthy(literal.value())) {
+            exitLoop(enclosing);
+            return new Stmt.Block(List.of());
+        }
+        Stmt.While loop = new Stmt.While(condition, optimize(stmt.body));
+        loop.hoisted = exitLoop(enclosing);
+        return loop;
+    }
+
+    private Stmt forStmt(Stmt.For stmt) {
+        // Top-level code has no frame, so the loop brings one.
+        boolean owner = frame == null;
+        if (owner) frame = new Frame(stmt.slotCount);
+        Stmt initializer = stmt.initializer == null ? null : optimize(stmt.initializer);
+        Loop enclosing = enterLoop(stmt);
+        Stmt.For loop = new Stmt.For(initializer, optimize(stmt.condition),
+            optimize(stmt.increment), optimize(stmt.body));
+        loop.hoisted = exitLoop(enclosing);
+        loop.slotCount = stmt.slotCount;
+        if (owner) {
+            loop.slotCount = frame.size;
+            frame = null;
+        }
+        loop.counted = stmt.counted;
+        loop.step = stmt.step;
+        return loop;
+    }
+
+    // Starts collecting the invariant expressions of a loop, if it runs in
+    // a frame. Returns the loop, for exitLoop().
+    private Loop enterLoop(Stmt stmt) {
+        if (frame == null) return null;
+        Loop loop = new Loop();
+        writes = loop.written;
+        scan(stmt);
+        writes = null;
+        loops.add(loop);
+        return loop;
+    }
+
+    // The slots the loop must reset when it starts.
+    private int[] exitLoop(Loop loop) {
+        if (loop == null) return Stmt.NO_SLOTS;
+        loops.remove(loops.size() - 1);
+        return loop.hoisted.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private Stmt.Function function(Stmt.Function stmt) {
+        Map<Integer, Expr.Literal> enclosing = locals;
+        Frame enclosingFrame = frame;
+        List<Loop> enclosingLoops = loops;
+        locals = new HashMap<>();
+        frame = new Frame(stmt.slotCount);
+        loops = new ArrayList<>();
+        functionDepth++;
+        inlining.add(stmt);
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, statements(stmt.body));
+        inlining.remove(inlining.size() - 1);
+        functionDepth--;
+        function.slotCount = frame.size;
+        locals = enclosing;
+        frame = enclosingFrame;
+        loops = enclosingLoops;
+        function.slot = stmt.slot;
+        function.cell = stmt.cell;
+        function.captures = stmt.captures;
+        function.cellParams = stmt.cellParams;
+        return function;
+    }
+
+    private Stmt functionStmt(Stmt.Function stmt) {
+        if (stmt.slot != Expr.UNRESOLVED) locals.remove(stmt.slot);
+        return function(stmt);
+    }
+
+    private Stmt classStmt(Stmt.Class stmt) {
+        if (stmt.slot != Expr.UNRESOLVED) locals.remove(stmt.slot);
+        boolean enclosingSuper = fixedSuper;
+        fixedSuper = fixedSuperclass(stmt) != null;
+        List<Stmt.Function> methods = new ArrayList<>();
+        for (Stmt.Function method : stmt.methods) {
+            methods.add(function(method));
+        }
+        fixedSuper = enclosingSuper;
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+        klass.slot = stmt.slot;
+        klass.cell = stmt.cell;
+        klass.superSlot = stmt.superSlot;
+        return klass;
+    }
+
+    // ---------------------------------------------------------- expressions
+
+    private Expr optimize(Expr expr) {
+        Loop loop = invariantIn(expr);
+        if (loop != null) return hoist(expr, loop);
+        return switch (expr) {
+            case null -> null;
+            case Expr.Binary binary -> binaryExpr(binary);
+            case Expr.Grouping grouping -> optimize(grouping.expression());
+            case Expr.Literal literal -> literal;
+            case Expr.Unary unary -> unaryExpr(unary);
+            case Expr.Variable variable -> variableExpr(variable);
+            case Expr.Assign assign -> assignExpr(assign);
+            case Expr.Logical logical -> logicalExpr(logical);
+            case Expr.Call call -> callExpr(call);
+            case Expr.Get get -> getExpr(get);
+            case Expr.Set set -> new Expr.Set(optimize(set.object()), set.name(),
+                optimize(set.value()), set.cache());
+            case Expr.This thisExpr -> thisExpr;
+            case Expr.Super superExpr -> {
+                superExpr.cache.direct = fixedSuper;
+                yield superExpr;
+            }
+            case Expr.Inline inline -> inline;
+            case Expr.Hoisted hoisted -> hoisted;
+        };
+    }
+
+    // The outermost loop 'expr' doesn't change in, if it is an operation
+    // worth keeping.
+    private Loop invariantIn(Expr expr) {
+        if (!(expr instanceof Expr.Binary || expr instanceof Expr.Unary ||
+              expr instanceof Expr.Logical)) {
+            return null;
+        }
+        for (Loop loop : loops) {
+            if (invariant(expr, loop.written)) return loop;
+        }
+        return null;
+    }
+
+    // Operators have no side effects, and a failing one fails on the first
+    // evaluation, so only the operands' values matter. Globals can change
+    // in any call, and a Cell in any closure.
+    private static boolean invariant(Expr expr, Set<Integer> written) {
+        return switch (expr) {
+            case Expr.Literal literal -> true;
+            case Expr.Grouping grouping -> invariant(grouping.expression(), written);
+            case Expr.Unary unary -> invariant(unary.right(), written);
+            case Expr.Binary binary -> invariant(binary.left, written) && invariant(binary.right, written);
+            case Expr.Logical logical -> invariant(logical.left(), written) &&
+                invariant(logical.right(), written);
+            case Expr.Variable variable -> !variable.cell && (variable.access == Expr.UPVALUE ||
+                variable.access == Expr.LOCAL && !written.contains(variable.slot));
+            case Expr.This thisExpr -> true;
+            default -> false;
+        };
+    }
+
+    private Expr hoist(Expr expr, Loop loop) {
+        List<Loop> enclosing = loops;
+        loops = List.of();
+        Expr optimized = optimize(expr);
+        loops = enclosing;
+        if (optimized instanceof Expr.Literal) return optimized;
+        int slot = frame.size++;
+        loop.hoisted.add(slot);
+        return new Expr.Hoisted(optimized, slot);
+    }
+
+    private Expr callExpr(Expr.Call expr) {
+        List<Expr> arguments = expr.arguments().stream().map(this::optimize).toList();
+        if (frame != null && expr.callee() instanceof Expr.Variable callee &&
+            callee.access == Expr.GLOBAL && callee.slot != Expr.UNRESOLVED) {
+            Stmt.Function function = inlinable.get(callee.slot);
+            if (function != null && function.params.size() == arguments.size() &&
+                !inlining.contains(function)) {
+                return inline(callee, expr.paren(), arguments, function);
+            }
+        }
+        return new Expr.Call(optimize(expr.callee()), expr.paren(), arguments);
+    }
+
+    // The arguments go to fresh slots of the caller's frame, which the body
+    // reads in place of the callee's parameter slots. Loops are not hoisted
+    // into from here: their written slots are the caller's, not the callee's.
+    private Expr inline(Expr.Variable callee, Token paren, List<Expr> arguments,
+                        Stmt.Function function) {
+        int firstSlot = frame.size;
+        frame.size += arguments.size();
+        int enclosingBase = parameterBase;
+        List<Loop> enclosingLoops = loops;
+        parameterBase = firstSlot;
+        loops = List.of();
+        inlining.add(function);
+        Expr body = optimize(((Stmt.Return) function.body.get(0)).value());
+        inlining.remove(inlining.size() - 1);
+        parameterBase = enclosingBase;
+        loops = enclosingLoops;
+        return new Expr.Inline(callee, paren, arguments, firstSlot, body);
+    }
+
+    private Expr getExpr(Expr.Get expr) {
+        String name = expr.name().lexeme;
+        if (directMethods.contains(name)) {
+            expr.cache().direct = true;
+            expr.cache().shadowable = storedFields.contains(name);
+        }
+        return new Expr.Get(optimize(expr.object()), expr.name(), expr.cache());
+    }
+
+    private Expr variableExpr(Expr.Variable expr) {
+        if (parameterBase >= 0 && expr.access == Expr.LOCAL) {
+            Expr.Variable parameter = new Expr.Variable(expr.name);
+            parameter.access = Expr.LOCAL;
+            parameter.slot = parameterBase + expr.slot;
+            return parameter;
+        }
+        Expr.Literal literal = null;
+        if (expr.access == Expr.LOCAL) {
+            literal = locals.get(expr.slot);
+        } else if (expr.access == Expr.GLOBAL && functionDepth == 0) {
+            literal = globals.get(expr.slot);
+        }
+        return literal != null ? literal : expr;
+    }
+
+    private Expr assignExpr(Expr.Assign expr) {
+        Expr.Assign assign = new Expr.Assign(expr.name, optimize(expr.value));
+        assign.access = expr.access;
+        assign.slot = expr.slot;
+        assign.cell = expr.cell;
+        if (parameterBase >= 0 && expr.access == Expr.LOCAL) assign.slot += parameterBase;
+        return assign;
+    }
+
+    private Expr unaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right());
+        if (right instanceof Expr.Literal literal) {
+            Object value = literal.value();
+            if (expr.operator().type == TokenType.BANG) {
+                return new Expr.Literal(!Interpreter.isTruthy(value));
+            }
+            if (value instanceof Double) return new Expr.Literal(-(double) value);
+        }
+        return new Expr.Unary(expr.operator(), right);
+    }
+
+    private Expr logicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left());
+        Expr right = optimize(expr.right());
+        if (left instanceof Expr.Literal literal) {
+            boolean truthy = Interpreter.isTruthy(literal.value());
+            boolean or = expr.operator().type == TokenType.OR;
+            return truthy == or ? left : right;
+        }
+        return new Expr.Logical(left, expr.operator(), right);
+    }
+
+    private Expr binaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal a && right instanceof Expr.Literal b) {
+            Object value = fold(expr.operator.type, a.value(), b.value());
+            if (value != null) return new Expr.Literal(value);
+        }
+        // Rebuilt even when nothing changed, as operands may have become
+        // numeric() since the node was made.
+        Expr.Binary binary = new Expr.Binary(left, expr.operator, right);
+        binary.specialization = expr.specialization;
+        return binary;
+    }
+
+    // The operator's result, or null when it would fail at runtime.
+    private static Object fold(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+            case BANG_EQUAL:  return !Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                break;
+            default:
+                break;
+        }
+        if (!(left instanceof Double) || !(right instanceof Double)) return null;
+        double a = (double) left;
+        double b = (double) right;
+        switch (operator) {
+            case PLUS:          return a + b;
+            case MINUS:         return a - b;
+            case STAR:          return a * b;
+            case SLASH:         return a / b;
+            case GREATER:       return a > b;
+            case GREATER_EQUAL: return a >= b;
+            case LESS:          return a < b;
+            case LESS_EQUAL:    return a <= b;
+            default:            return null;
+        }
+    }
+}
@@ -133,6 +133,18 @@ public class Parser {
         if (match(TokenType.LEFT_BRACE)) {
             return new Stmt.Block(block());
         }
+
+        if (match(TokenType.BREAK)) {
+            Token keyword = previous();
+            consume(TokenType.SEMICOLON, "Expect ';' after 'break'.");
+            return new Stmt.Break(keyword);
+        }
+
+        if (match(TokenType.CONTINUE)) {
+            Token keyword = previous();
+            consume(TokenType.SEMICOLON, "Expect ';' after 'continue'.");
+            return new Stmt.Continue(keyword);
+        }
         return expressionStatement();
     }
 
@@ -172,21 +184,7 @@ public class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(List.of(body, new Stmt.Expression(increment)));
-        }
-
-        if (condition == null) {
-            condition = new Expr.Literal(true);
-        }
-        
-        body = new Stmt.While(condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(List.of(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt whileStatement() {
@@ -237,7 +235,7 @@ public class Parser {
                 return new Expr.Assign(name, value);
             } else if (expr instanceof Expr.Get) {
                 Expr.Get get = (Expr.Get) expr;
-                return new Expr.Set(get.object, get.name, value);
+                return new Expr.Set(get.object(), get.name(), value);
             }
 
             error(equals, "Invalid assignment target.");
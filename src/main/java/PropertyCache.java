@@ -0,0 +1,137 @@
+// Inline cache for one property access site (an Expr.Get, Expr.Set or
+// Expr.Super). Entries are keyed on the receiver's Shape, or on the
+// superclass for super accesses. Because every class has its own root shape
+// and classes never change after creation, a shape fully determines whether
+// the name is a field (and in which slot) or which method it finds.
+//
+// A site starts empty, becomes monomorphic on first use and polymorphic up to
+// MAX_ENTRIES receivers; past that it is megamorphic and misses simply take
+// the generic lookup.
+public class PropertyCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Object[] keys = new Object[MAX_ENTRIES];
+    // Field slot, or -1 when the entry resolves to a method.
+    private final int[] slots = new int[MAX_ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES];
+    // For stores that add a field: the shape the instance moves to.
+    private final Shape[] transitions = new Shape[MAX_ENTRIES];
+    private int count = 0;
+
+    // Set by the Optimizer's class-hierarchy analysis when every lookup
+    // through this site can only find one method, so the first one found is
+    // kept for good. If 'shadowable', some instance may have a field of that
+    // name, which then wins as usual.
+    boolean direct;
+    boolean shadowable;
+    private LoxFunction target;
+
+    Object get(LoxInstance instance, Token name) {
+        if (target != null && !shadowed(instance, name)) return target.bind(instance);
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == shape) {
+                int slot = slots[i];
+                return slot >= 0 ? instance.fields[slot] : methods[i].bind(instance);
+            }
+        }
+        if (count == MAX_ENTRIES) return instance.get(name);
+
+        int slot = shape.indexOf(name.lexeme);
+        if (slot >= 0) {
+            add(shape, slot, null, null);
+            return instance.fields[slot];
+        }
+
+        LoxFunction method = instance.klass.findMethod(name.lexeme);
+        if (method == null) {
+            throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        }
+        add(shape, -1, method, null);
+        if (direct) target = method;
+        return method.bind(instance);
+    }
+
+    private boolean shadowed(LoxInstance instance, Token name) {
+        return shadowable && instance.shape.indexOf(name.lexeme) >= 0;
+    }
+
+    // The method a call through this site should invoke on the instance, or
+    // null when the name is a field or undefined and get() must handle it.
+    LoxFunction findMethod(LoxInstance instance, Token name) {
+        if (target != null && !shadowed(instance, name)) return target;
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == shape) return methods[i];
+        }
+        if (count == MAX_ENTRIES) {
+            if (shape.indexOf(name.lexeme) >= 0) return null;
+            return instance.klass.findMethod(name.lexeme);
+        }
+
+        int slot = shape.indexOf(name.lexeme);
+        if (slot >= 0) {
+            add(shape, slot, null, null);
+            return null;
+        }
+
+        LoxFunction method = instance.klass.findMethod(name.lexeme);
+        if (method != null) {
+            add(shape, -1, method, null);
+            if (direct) target = method;
+        }
+        return method;
+    }
+
+    void set(LoxInstance instance, Token name, Object value) {
+        Shape shape = instance.shape;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == shape) {
+                if (transitions[i] == null) {
+                    instance.fields[slots[i]] = value;
+                } else {
+                    instance.addField(transitions[i], slots[i], value);
+                }
+                return;
+            }
+        }
+        if (count == MAX_ENTRIES) {
+            instance.set(name, value);
+            return;
+        }
+
+        int slot = shape.indexOf(name.lexeme);
+        if (slot >= 0) {
+            add(shape, slot, null, null);
+            instance.fields[slot] = value;
+            return;
+        }
+
+        Shape next = shape.withField(name.lexeme);
+        add(shape, shape.fieldCount, null, next);
+        instance.addField(next, shape.fieldCount, value);
+    }
+
+    LoxFunction findSuperMethod(LoxClass superclass, Token name) {
+        if (target != null) return target;
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == superclass) return methods[i];
+        }
+
+        LoxFunction method = superclass.findMethod(name.lexeme);
+        if (method != null) {
+            add(superclass, -1, method, null);
+            if (direct) target = method;
+        }
+        return method;
+    }
+
+    private void add(Object key, int slot, LoxFunction method, Shape transition) {
+        if (count == MAX_ENTRIES) return;
+        keys[count] = key;
+        slots[count] = slot;
+        methods[count] = method;
+        transitions[count] = transition;
+        count++;
+    }
+}
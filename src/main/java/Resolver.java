@@ -1,14 +1,56 @@
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 
-public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+public class Resolver {
+    private final Stack<Map<String, Local>> scopes = new Stack<>();
+    // The frame the current scope belongs to; null in top-level code
+    // outside any block, where every declaration is a global.
+    private Frame frame = null;
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
+    // Loops around the code being resolved, within the current function.
+    private int loopDepth = 0;
+    private final Globals globals;
+
+    // A local's slot is its position in the flat frame of the function that
+    // declares it. Slots are handed out like a stack, so sibling blocks
+    // reuse them.
+    private static class Local {
+        final Frame frame;
+        final int slot;
+        boolean defined = false;
+        // A captured local that is also assigned after its declaration
+        // lives in a Cell, so the frame and its closures see the same value.
+        boolean captured = false;
+        boolean assigned = false;
+        // Nodes that declare, read or assign it, flagged if it needs a Cell.
+        final List<Object> uses = new ArrayList<>();
+
+        Local(Frame frame, int slot) {
+            this.frame = frame;
+            this.slot = slot;
+        }
+    }
+
+    // A function body, or a top-level block or class scope, which runs in a
+    // frame of its own.
+    private static class Frame {
+        final Frame enclosing;
+        int nextSlot = 0;
+        int size = 0;
+        // Outer locals this frame's function captures, in capture order, and
+        // where each comes from, as in Stmt.Function.captures.
+        final List<Local> captured = new ArrayList<>();
+        final List<Integer> captures = new ArrayList<>();
+
+        Frame(Frame enclosing) {
+            this.enclosing = enclosing;
+        }
+    }
 
     private enum FunctionType {
         NONE,
@@ -23,12 +65,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver(Globals globals) {
+        this.globals = globals;
     }
 
-    @Override
-    public Void visitSuperExpr(Expr.Super expr) {
+    private void superExpr(Expr.Super expr) {
         if (currentClass == ClassType.NONE) {
             Scanner.error(expr.keyword.line,
                 "Can't use 'super' outside of a class.");
@@ -38,40 +79,37 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
 
         resolveLocal(expr, expr.keyword);
-        return null;
+        Local self = find("this");
+        if (self != null) {
+            expr.thisAccess = self.frame == frame ? Expr.LOCAL : Expr.UPVALUE;
+            expr.thisSlot = slotOf(self);
+        }
     }
 
-    @Override
-    public Void visitThisExpr(Expr.This expr) {
+    private void thisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
             Scanner.error(expr.keyword.line,
                 "Can't use 'this' outside of a class.");
-            return null;
+            return;
         }
 
         resolveLocal(expr, expr.keyword);
-        return null;
     }
 
-    @Override
-    public Void visitSetExpr(Expr.Set expr) {
-        resolve(expr.value);
-        resolve(expr.object);
-        return null;
+    private void setExpr(Expr.Set expr) {
+        resolve(expr.value());
+        resolve(expr.object());
     }
 
-    @Override
-    public Void visitGetExpr(Expr.Get expr) {
-        resolve(expr.object);
-        return null;
+    private void getExpr(Expr.Get expr) {
+        resolve(expr.object());
     }
 
-    @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    private void classStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        Local local = declare(stmt.name, stmt);
         define(stmt.name);
 
         if (stmt.superclass != null &&
@@ -85,14 +123,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.superclass);   
         }
 
+        boolean topLevel = scopes.isEmpty();
         if (stmt.superclass != null) {
+            if (topLevel) frame = new Frame(null);
             beginScope();
-            scopes.peek().put("super", true);
+            stmt.superSlot = declareSynthetic("super").slot;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
             if (method.name.lexeme.equals("init")) {
@@ -101,19 +138,25 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolveFunction(method, declaration); 
         }
 
-        endScope();
-
-        if (stmt.superclass != null) endScope();
+        if (stmt.superclass != null) {
+            endScope();
+            if (topLevel) frame = null;
+        }
+        // The methods capture the class before it is stored in its slot.
+        if (local != null && local.captured) local.assigned = true;
         currentClass = enclosingClass;
-        return null;
     }
 
-    @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
+    private void blockStmt(Stmt.Block stmt) {
+        boolean topLevel = scopes.isEmpty();
+        if (topLevel) frame = new Frame(null);
         beginScope();
         resolve(stmt.statements);
         endScope();
-        return null;
+        if (topLevel) {
+            stmt.slotCount = frame.size;
+            frame = null;
+        }
     }
 
     void resolve(List<Stmt> statements) {
@@ -123,185 +166,368 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void resolve(Stmt stmt) {
-        stmt.accept(this);
+        switch (stmt) {
+            case Stmt.Expression expression -> expressionStmt(expression);
+            case Stmt.Print print -> printStmt(print);
+            case Stmt.Var var -> varStmt(var);
+            case Stmt.Block block -> blockStmt(block);
+            case Stmt.If ifStmt -> ifStmt(ifStmt);
+            case Stmt.While loop -> whileStmt(loop);
+            case Stmt.For loop -> forStmt(loop);
+            case Stmt.Function function -> functionStmt(function);
+            case Stmt.Return ret -> returnStmt(ret);
+            case Stmt.Class klass -> classStmt(klass);
+            case Stmt.Break breakStmt -> breakStmt(breakStmt);
+            case Stmt.Continue continueStmt -> continueStmt(continueStmt);
+        }
     }
 
     private void resolve(Expr expr) {
-        expr.accept(this);
+        switch (expr) {
+            case Expr.Binary binary -> binaryExpr(binary);
+            case Expr.Grouping grouping -> groupingExpr(grouping);
+            case Expr.Literal literal -> literalExpr(literal);
+            case Expr.Unary unary -> unaryExpr(unary);
+            case Expr.Variable variable -> variableExpr(variable);
+            case Expr.Assign assign -> assignExpr(assign);
+            case Expr.Logical logical -> logicalExpr(logical);
+            case Expr.Call call -> callExpr(call);
+            case Expr.Get get -> getExpr(get);
+            case Expr.Set set -> setExpr(set);
+            case Expr.This thisExpr -> thisExpr(thisExpr);
+            case Expr.Super superExpr -> superExpr(superExpr);
+            // Only the Optimizer makes these, from resolved nodes.
+            case Expr.Inline inline -> { }
+            case Expr.Hoisted hoisted -> { }
+        }
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new HashMap<String, Local>());
     }   
 
     private void endScope() {
-        scopes.pop();
+        Map<String, Local> scope = scopes.pop();
+        for (Local local : scope.values()) {
+            if (!local.assigned) continue;
+            for (Object node : local.uses) {
+                if (node instanceof Stmt.Var var) var.assigned = true;
+                if (local.captured) markCell(node);
+            }
+        }
+        frame.nextSlot -= scope.size();
     }
 
-    @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+    private void varStmt(Stmt.Var stmt) {
+        declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
         define(stmt.name);
-        return null;
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
+    // Declares a local in the current scope, giving it the next free slot of
+    // the frame. Returns null for globals and redeclarations.
+    private Local declare(Token name) {
+        if (scopes.isEmpty()) return null;
+        Map<String, Local> scope = scopes.peek();
 
         if (scope.containsKey(name.lexeme)) {
             Scanner.error(name.line,
                 "Already a variable with this name in this scope.");
+            return null;
+        }
+        Local local = new Local(frame, frame.nextSlot++);
+        frame.size = Math.max(frame.size, frame.nextSlot);
+        scope.put(name.lexeme, local);
+        return local;
+    }
+
+    private Local declare(Token name, Stmt declaration) {
+        Local local = declare(name);
+        if (local != null) {
+            local.uses.add(declaration);
+            if (declaration instanceof Stmt.Var) {
+                ((Stmt.Var) declaration).slot = local.slot;
+            } else if (declaration instanceof Stmt.Function) {
+                ((Stmt.Function) declaration).slot = local.slot;
+            } else if (declaration instanceof Stmt.Class) {
+                ((Stmt.Class) declaration).slot = local.slot;
+            }
         }
-        scope.put(name.lexeme, false);
+        return local;
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        Map<String, Boolean> scope = scopes.peek();
-        scope.put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
+    }
+
+    private Local declareSynthetic(String name) {
+        Local local = new Local(frame, frame.nextSlot++);
+        frame.size = Math.max(frame.size, frame.nextSlot);
+        local.defined = true;
+        scopes.peek().put(name, local);
+        return local;
     }
 
-    @Override
-    public Void visitVariableExpr(Expr.Variable expr) {
+    private void variableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() &&
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+            scopes.peek().containsKey(expr.name.lexeme) &&
+            !scopes.peek().get(expr.name.lexeme).defined) {
         Scanner.error(expr.name.line,"Can't read local variable in its own initializer.");}
 
         resolveLocal(expr, expr.name);
+    }
+
+    private Local resolveLocal(Expr expr, Token name) {
+        Local local = find(name.lexeme);
+        if (local != null) {
+            local.uses.add(expr);
+            resolve(expr, local.frame == frame ? Expr.LOCAL : Expr.UPVALUE, slotOf(local));
+            return local;
+        }
+
+        // Not found locally, so assume it is global.
+        resolve(expr, Expr.GLOBAL, globals.indexOf(name.lexeme));
         return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    private Local find(String name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                resolve(expr, scopes.size() - 1 - i);
-                return;
-            }
+            Local local = scopes.get(i).get(name);
+            if (local != null) return local;
         }
+        return null;
+    }
+
+    // Where the current frame finds 'local': its own slot, or the index of
+    // the capture that brings it in from an enclosing function.
+    private int slotOf(Local local) {
+        return local.frame == frame ? local.slot : capture(frame, local);
+    }
+
+    // Captures 'local' into the function of 'into', and into every function
+    // between it and the local's own frame, like clox upvalues.
+    private int capture(Frame into, Local local) {
+        int index = into.captured.indexOf(local);
+        if (index >= 0) return index;
+
+        int from = into.enclosing == local.frame
+            ? local.slot : -1 - capture(into.enclosing, local);
+        local.captured = true;
+        into.captured.add(local);
+        into.captures.add(from);
+        return into.captured.size() - 1;
     }
 
-    @Override
-    public Void visitAssignExpr(Expr.Assign expr) {
+    private void assignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
-        return null;
+        Local local = resolveLocal(expr, expr.name);
+        if (local != null) local.assigned = true;
     }
 
-    @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+    private void functionStmt(Stmt.Function stmt) {
+        Local local = declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
-        return null;
+        // A recursive local function captures its name before the
+        // declaration stores the function there.
+        if (local != null && local.captured) local.assigned = true;
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        int enclosingLoops = loopDepth;
+        Frame enclosingFrame = frame;
         currentFunction = type;
+        loopDepth = 0;
+        frame = new Frame(enclosingFrame);
         beginScope();
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            // The receiver is passed in the method's own frame, ahead of the
+            // parameters, so calling a method needs no extra environment.
+            declareSynthetic("this");
+        }
+        List<Local> params = new ArrayList<>();
         for (Token param : function.params) {
-            declare(param);
+            Local local = declare(param);
+            if (local != null) params.add(local);
             define(param);
         }
         resolve(function.body);
+
+        function.slotCount = frame.size;
+        function.captures = frame.captures.stream().mapToInt(Integer::intValue).toArray();
+        function.cellParams = params.stream()
+            .filter(param -> param.captured && param.assigned)
+            .mapToInt(param -> param.slot).toArray();
         endScope();
+        frame = enclosingFrame;
         currentFunction = enclosingFunction;
+        loopDepth = enclosingLoops;
     }
 
-    @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        resolve(stmt.expression);
-        return null;
+    private void expressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression());
     }
 
-    @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        resolve(stmt.expression);
-        return null;
+    private void printStmt(Stmt.Print stmt) {
+        resolve(stmt.expression());
     }
 
-    @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        resolve(stmt.condition);
-        resolve(stmt.thenBranch);
-        if (stmt.elseBranch != null) {
-            resolve(stmt.elseBranch);
+    private void ifStmt(Stmt.If stmt) {
+        resolve(stmt.condition());
+        resolve(stmt.thenBranch());
+        if (stmt.elseBranch() != null) {
+            resolve(stmt.elseBranch());
         }
-        return null;
     }
 
-    @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    private void whileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
+        loopDepth++;
         resolve(stmt.body);
-        return null;
+        loopDepth--;
+    }
+
+    private void forStmt(Stmt.For stmt) {
+        boolean topLevel = scopes.isEmpty();
+        if (topLevel) frame = new Frame(null);
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        Local counter = stmt.initializer instanceof Stmt.Var var
+            ? scopes.peek().get(var.name.lexeme) : null;
+        if (stmt.condition != null) resolve(stmt.condition);
+        loopDepth++;
+        resolve(stmt.body);
+        loopDepth--;
+        // The increment assigns the counter too; only assignments before it
+        // (and captures, which would need a Cell) rule out counting.
+        boolean counterLeftAlone = counter != null && !counter.assigned && !counter.captured;
+        if (stmt.increment != null) resolve(stmt.increment);
+        stmt.counted = counterLeftAlone && countedShape(stmt);
+        endScope();
+        if (topLevel) {
+            stmt.slotCount = frame.size;
+            frame = null;
+        }
     }
 
-    @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    private static boolean countedShape(Stmt.For stmt) {
+        Stmt.Var var = (Stmt.Var) stmt.initializer;
+        if (var.initializer == null) return false;
+        if (!(stmt.condition instanceof Expr.Binary condition) ||
+            !isCounter(condition.left, var)) return false;
+        switch (condition.operator.type) {
+            case LESS, LESS_EQUAL, GREATER, GREATER_EQUAL -> { }
+            default -> { return false; }
+        }
+
+        if (!(stmt.increment instanceof Expr.Assign assign) ||
+            assign.access != Expr.LOCAL || assign.slot != var.slot ||
+            !(assign.value instanceof Expr.Binary step) ||
+            !isCounter(step.left, var) ||
+            !(step.right instanceof Expr.Literal literal) ||
+            !(literal.value() instanceof Double)) return false;
+        double by = (Double) literal.value();
+        switch (step.operator.type) {
+            case PLUS -> stmt.step = by;
+            case MINUS -> stmt.step = -by;
+            default -> { return false; }
+        }
+        return true;
+    }
+
+    private static boolean isCounter(Expr expr, Stmt.Var var) {
+        return expr instanceof Expr.Variable variable &&
+            variable.access == Expr.LOCAL && variable.slot == var.slot &&
+            variable.name.lexeme.equals(var.name.lexeme);
+    }
+
+    private void breakStmt(Stmt.Break stmt) {
+        if (loopDepth == 0) {
+            Scanner.error(stmt.keyword().line, "Can't use 'break' outside of a loop.");
+        }
+    }
+
+    private void continueStmt(Stmt.Continue stmt) {
+        if (loopDepth == 0) {
+            Scanner.error(stmt.keyword().line, "Can't use 'continue' outside of a loop.");
+        }
+    }
+
+    private void returnStmt(Stmt.Return stmt) {
         if (currentFunction == FunctionType.NONE) {
-            Scanner.error(stmt.keyword.line, "Can't return from top-level code.");
+            Scanner.error(stmt.keyword().line, "Can't return from top-level code.");
         }
 
-        if (stmt.value != null) {
+        if (stmt.value() != null) {
             if (currentFunction == FunctionType.INITIALIZER) {
-                Scanner.error(stmt.keyword.line,
+                Scanner.error(stmt.keyword().line,
                     "Can't return a value from an initializer.");
             }
-            resolve(stmt.value);
+            resolve(stmt.value());
         }
-
-        return null;
     }
 
-    @Override
-    public Void visitBinaryExpr(Expr.Binary expr) {
+    private void binaryExpr(Expr.Binary expr) {
         resolve(expr.left);
         resolve(expr.right);
-        return null;
     }
 
-    @Override
-    public Void visitGroupingExpr(Expr.Grouping expr) {
-        resolve(expr.expression);
-        return null;
+    private void groupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression());
     }
 
-    @Override
-    public Void visitCallExpr(Expr.Call expr) {
-        resolve(expr.callee);
+    private void callExpr(Expr.Call expr) {
+        resolve(expr.callee());
 
-        for (Expr argument : expr.arguments) {
+        for (Expr argument : expr.arguments()) {
             resolve(argument);
         }
+    }
 
-        return null;
+    private void literalExpr(Expr.Literal expr) {
     }
 
-    @Override
-    public Void visitLiteralExpr(Expr.Literal expr) {
-        return null;
+    private void logicalExpr(Expr.Logical expr) {
+        resolve(expr.left());
+        resolve(expr.right());
     }
 
-    @Override
-    public Void visitLogicalExpr(Expr.Logical expr) {
-        resolve(expr.left);
-        resolve(expr.right);
-        return null;
+    private void unaryExpr(Expr.Unary expr) {
+        resolve(expr.right());
     }
 
-    @Override
-    public Void visitUnaryExpr(Expr.Unary expr) {
-        resolve(expr.right);
-        return null;
+    private void resolve(Expr expr, int access, int slot) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable) expr).access = access;
+            ((Expr.Variable) expr).slot = slot;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign) expr).access = access;
+            ((Expr.Assign) expr).slot = slot;
+        } else if (expr instanceof Expr.This) {
+            ((Expr.This) expr).access = access;
+            ((Expr.This) expr).slot = slot;
+        } else if (expr instanceof Expr.Super) {
+            ((Expr.Super) expr).access = access;
+            ((Expr.Super) expr).slot = slot;
+        }
     }
 
-    void resolve(Expr expr, int depth) {
-        interpreter.locals.put(expr, depth);
+    private void markCell(Object node) {
+        if (node instanceof Expr.Variable) {
+            ((Expr.Variable) node).cell = true;
+        } else if (node instanceof Expr.Assign) {
+            ((Expr.Assign) node).cell = true;
+        } else if (node instanceof Stmt.Var) {
+            ((Stmt.Var) node).cell = true;
+        } else if (node instanceof Stmt.Function) {
+            ((Stmt.Function) node).cell = true;
+        } else if (node instanceof Stmt.Class) {
+            ((Stmt.Class) node).cell = true;
+        }
     }
 }
@@ -1,8 +0,0 @@
-public class Return extends RuntimeException {
-    final Object value;
-
-    Return(Object value) {
-        super(null, null, false, false); 
-        this.value = value;
-    }
-}
@@ -0,0 +1,67 @@
+// A long Lox string made by '+'. Lox strings are Strings or Ropes, which is
+// why the engines test for CharSequence rather than String.
+//
+// A Rope is the first 'length' chars of a StringBuilder. Appending to the
+// newest Rope on a builder just appends to the builder and hands back a
+// longer Rope on it, so 's = s + piece' in a loop costs the piece, not the
+// whole string. Any other concatenation copies. The chars behind a Rope
+// never change, and toString() flattens them once for printing, equality
+// and anything else that wants a String.
+public final class Rope implements CharSequence {
+    // Shorter results stay plain Strings.
+    private static final int MIN_LENGTH = 256;
+
+    private final StringBuilder builder;
+    private final int length;
+    private String flat;
+
+    private Rope(StringBuilder builder, int length) {
+        this.builder = builder;
+        this.length = length;
+    }
+
+    // 'left + right' for two Lox strings.
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        int length = left.length() + right.length();
+        if (left instanceof Rope rope && rope.length == rope.builder.length()) {
+            append(rope.builder, right);
+            return new Rope(rope.builder, length);
+        }
+        if (length < MIN_LENGTH) return left.toString().concat(right.toString());
+
+        StringBuilder builder = new StringBuilder(length * 2);
+        append(builder, left);
+        append(builder, right);
+        return new Rope(builder, length);
+    }
+
+    private static void append(StringBuilder builder, CharSequence chars) {
+        if (chars instanceof Rope rope) {
+            builder.append(rope.builder, 0, rope.length);
+        } else {
+            builder.append((String) chars);
+        }
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length) throw new IndexOutOfBoundsException(index);
+        return builder.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (flat == null) flat = builder.substring(0, length);
+        return flat;
+    }
+}
@@ -9,7 +9,9 @@ public class Scanner {
     static {
         keywords = new HashMap<>();
         keywords.put("and",    TokenType.AND);
+        keywords.put("break",  TokenType.BREAK);
         keywords.put("class",  TokenType.CLASS);
+        keywords.put("continue", TokenType.CONTINUE);
         keywords.put("else",   TokenType.ELSE);
         keywords.put("false",  TokenType.FALSE);
         keywords.put("for",    TokenType.FOR);
@@ -90,8 +92,9 @@ public class Scanner {
         // The closing ".
         advance();
 
-        // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        // Trim the surrounding quotes. Interned like identifiers, so equal
+        // literals are the same String and isEqual's identity check hits.
+        String value = source.substring(start + 1, current - 1).intern();
         addToken(TokenType.STRING, value);
     }
 
@@ -117,7 +120,15 @@ public class Scanner {
         while (isAlphaNumeric(peek())) advance();
         String text = source.substring(start, current);
         TokenType type = keywords.get(text);
-        if (type == null) type = TokenType.IDENTIFIER;
+        if (type == null) {
+            // Every use of a name gets the same String, so the name-keyed
+            // maps (Shape, LoxClass methods, Globals, the VM's tables) match
+            // it by identity, its hash is computed once, and the program
+            // keeps one copy of it. String.intern() also makes it the
+            // String the runtime's own literals ("init") are.
+            tokens.add(new Token(TokenType.IDENTIFIER, text.intern(), null, line));
+            return;
+        }
         addToken(type);
     }
 
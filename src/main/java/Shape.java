@@ -0,0 +1,40 @@
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of an instance's fields: which slot each property name lives in.
+// Instances start at their class's root shape and move along a transition
+// each time they gain a field, so instances of one class that add fields in
+// the same order end up sharing one Shape.
+public class Shape {
+    final int fieldCount;
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        this.fieldCount = 0;
+        this.slots = Map.of();
+    }
+
+    private Shape(Shape parent, String name) {
+        this.fieldCount = parent.fieldCount + 1;
+        this.slots = new HashMap<>(parent.slots);
+        this.slots.put(name, parent.fieldCount);
+    }
+
+    // Slot of the field, or -1 if instances of this shape don't have it.
+    int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // The shape an instance moves to when it gains the field. The new field
+    // always takes the next slot, fieldCount.
+    Shape withField(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
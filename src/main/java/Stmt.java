@@ -1,152 +1,127 @@
 import java.util.List;
 
-public abstract class Stmt {
-    interface Visitor<R> {
-        R visitExpressionStmt(Expression stmt);
-        R visitPrintStmt(Print stmt);
-        R visitVarStmt(Var stmt);
-        R visitBlockStmt(Block stmt);
-        R visitIfStmt(If stmt);
-        R visitWhileStmt(While stmt);
-        R visitFunctionStmt(Function stmt);
-        R visitReturnStmt(Return stmt); 
-        R visitClassStmt(Class stmt);
-    }
-
-    abstract <R> R accept(Visitor<R> visitor);
-
-    static class Expression extends Stmt {
-        final Expr expression;
-
-        Expression(Expr expression) {
-            this.expression = expression;
-        }
+// Statement nodes, sealed like Expr. Declarations and blocks carry Resolver
+// and JIT annotations and are final classes; the rest are records.
+public sealed interface Stmt {
 
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitExpressionStmt(this);
-        }
-    }
+    int[] NO_SLOTS = {};
 
-    static class Print extends Stmt {
-        final Expr expression;
+    record Expression(Expr expression) implements Stmt {}
 
-        Print(Expr expression) {
-            this.expression = expression;
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitPrintStmt(this);
-        }
-    }
+    record Print(Expr expression) implements Stmt {}
 
-    static class Var extends Stmt {
+    final class Var implements Stmt {
         final Token name;
         final Expr initializer;
+        // The local's slot in its frame, or UNRESOLVED for a global, whether
+        // it is kept in a Cell, and whether anything assigns it after the
+        // declaration. Set by the Resolver.
+        int slot = Expr.UNRESOLVED;
+        boolean cell;
+        boolean assigned;
 
         Var(Token name, Expr initializer) {
             this.name = name;
             this.initializer = initializer;
         }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitVarStmt(this);
-        }
     }
 
-    static class Block extends Stmt {
+    final class Block implements Stmt {
         final List<Stmt> statements;
+        // Frame size for a block that is the outermost scope of top-level
+        // code, which runs in a frame of its own. Set by the Resolver.
+        int slotCount;
 
         Block(List<Stmt> statements) {
             this.statements = statements;
         }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitBlockStmt(this);
-        }
     }
 
-    static class If extends Stmt {
+    record If(Expr condition, Stmt thenBranch, Stmt elseBranch) implements Stmt {}
+
+    final class While implements Stmt {
         final Expr condition;
-        final Stmt thenBranch;
-        final Stmt elseBranch;
+        final Stmt body;
+        // Frame slots of the loop-invariant expressions the Optimizer hoisted
+        // out of the loop. The loop empties them each time it starts.
+        int[] hoisted = NO_SLOTS;
 
-        If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+        While(Expr condition, Stmt body) {
             this.condition = condition;
-            this.thenBranch = thenBranch;
-            this.elseBranch = elseBranch;
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitIfStmt(this);
+            this.body = body;
         }
     }
 
-    static class While extends Stmt {
+    // Any clause may be null. The loop is a scope of its own, for the
+    // initializer's variable.
+    final class For implements Stmt {
+        final Stmt initializer;
         final Expr condition;
+        final Expr increment;
         final Stmt body;
-
-        While(Expr condition, Stmt body) {
+        // Set by the Resolver: the frame size when the loop is top-level
+        // code's outermost scope, as for Block, and whether the loop has the
+        // shape 'for (var i = a; i < b; i = i + c)' (any comparison, '+' or
+        // '-', c a number literal) with nothing else assigning or capturing
+        // i. Counted loops step i by 'step' as a primitive double.
+        int slotCount;
+        boolean counted;
+        double step;
+        // As for While.
+        int[] hoisted = NO_SLOTS;
+
+        For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+            this.initializer = initializer;
             this.condition = condition;
+            this.increment = increment;
             this.body = body;
         }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitWhileStmt(this);
-        }
     }
 
-    static class Function extends Stmt {
+    record Break(Token keyword) implements Stmt {}
+
+    record Continue(Token keyword) implements Stmt {}
+
+    final class Function implements Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        // Set by the Resolver: the slot and Cell flag of the function's name
+        // (as for Var), the size of its flat frame, which slots of the
+        // enclosing frame it captures (a slot, or -1 - i for the enclosing
+        // function's own capture i) and the parameters kept in Cells.
+        int slot = Expr.UNRESOLVED;
+        boolean cell;
+        int slotCount;
+        int[] captures;
+        int[] cellParams;
+        // Calls so far, and the JIT-compiled body once there have been enough.
+        int calls;
+        JitCompiler.Code compiled;
 
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
             this.params = params;
             this.body = body;
         }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitFunctionStmt(this);
-        }
     }
 
-    static class Return extends Stmt {
-        final Token keyword;
-        final Expr value;
+    record Return(Token keyword, Expr value) implements Stmt {}
 
-        Return(Token keyword, Expr value) {
-            this.keyword = keyword;
-            this.value = value;
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitReturnStmt(this);
-        }
-    }
-
-    static class Class extends Stmt {
+    final class Class implements Stmt {
         final Token name;
         final Expr.Variable superclass;
         final List<Stmt.Function> methods;
+        // The name's slot and Cell flag, as for Var, and the slot holding
+        // "super" for the methods to capture. Set by the Resolver.
+        int slot = Expr.UNRESOLVED;
+        boolean cell;
+        int superSlot;
 
         Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
             this.name = name;
-            this.methods = methods;
             this.superclass = superclass;
-        }
-
-        @Override
-        <R> R accept(Visitor<R> visitor) {
-            return visitor.visitClassStmt(this);
+            this.methods = methods;
         }
     }
 }
@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Works out, for each read of a local, what type its value has there, by
+// following assignments along the control flow of its function. A read
+// whose local always holds a number makes the read numeric(), so the
+// engines skip the operand checks around it; '+', '==' and '!=' over
+// operands of known types start out specialized.
+//
+// A type describes the value an expression has if it finishes at all, so
+// '1 + x' is a number: if x isn't one, it throws. Globals, captures and
+// locals kept in Cells can change behind the code's back and are always
+// ANY. Runs on the resolved tree, before the Optimizer rebuilds it.
+public class TypeInference {
+
+    enum Type {
+        // Nothing assigned yet on any path that gets here.
+        NONE,
+        NIL,
+        BOOLEAN,
+        NUMBER,
+        STRING,
+        INSTANCE,
+        ANY;
+
+        Type join(Type other) {
+            if (this == other || other == NONE) return this;
+            return this == NONE ? other : ANY;
+        }
+    }
+
+    // The type of each slot of the current frame at the code being looked
+    // at, or null where that code can't be reached.
+    private static final class State {
+        Type[] slots;
+
+        State(Type[] slots) {
+            this.slots = slots;
+        }
+
+        Type get(int slot) {
+            return slot < slots.length ? slots[slot] : Type.NONE;
+        }
+
+        void set(int slot, Type type) {
+            if (slot >= slots.length) {
+                int length = slots.length;
+                slots = Arrays.copyOf(slots, Math.max(slot + 1, length * 2));
+                Arrays.fill(slots, length, slots.length, Type.NONE);
+            }
+            slots[slot] = type;
+        }
+
+        State copy() {
+            return new State(slots.clone());
+        }
+
+        static State join(State a, State b) {
+            if (a == null) return b == null ? null : b.copy();
+            if (b == null) return a.copy();
+            State joined = new State(new Type[Math.max(a.slots.length, b.slots.length)]);
+            for (int i = 0; i < joined.slots.length; i++) {
+                joined.slots[i] = a.get(i).join(b.get(i));
+            }
+            return joined;
+        }
+
+        static boolean same(State a, State b) {
+            if (a == null || b == null) return a == b;
+            int length = Math.max(a.slots.length, b.slots.length);
+            for (int i = 0; i < length; i++) {
+                if (a.get(i) != b.get(i)) return false;
+            }
+            return true;
+        }
+    }
+
+    // States leaving the innermost loop through break and continue.
+    private static final class Loop {
+        final List<State> breaks = new ArrayList<>();
+        final List<State> continues = new ArrayList<>();
+    }
+
+    private State state = new State(new Type[0]);
+    private final List<Loop> loops = new ArrayList<>();
+
+    void infer(List<Stmt> statements) {
+        statements.forEach(this::infer);
+    }
+
+    // ----------------------------------------------------------- statements
+
+    private void infer(Stmt stmt) {
+        switch (stmt) {
+            case Stmt.Expression expression -> type(expression.expression());
+            case Stmt.Print print -> type(print.expression());
+            case Stmt.Var var -> {
+                Type type = var.initializer == null ? Type.NIL : type(var.initializer);
+                define(var.slot, var.cell, type);
+            }
+            case Stmt.Block block -> infer(block.statements);
+            case Stmt.If ifStmt -> ifStmt(ifStmt);
+            case Stmt.While loop -> loop(loop.condition, loop.body, null);
+            case Stmt.For loop -> {
+                if (loop.initializer != null) infer(loop.initializer);
+                loop(loop.condition, loop.body, loop.increment);
+            }
+            case Stmt.Function function -> {
+                define(function.slot, function.cell, Type.ANY);
+                function(function, false);
+            }
+            case Stmt.Return ret -> {
+                if (ret.value() != null) type(ret.value());
+                state = null;
+            }
+            case Stmt.Class klass -> {
+                if (klass.superclass != null) type(klass.superclass);
+                define(klass.slot, klass.cell, Type.ANY);
+                for (Stmt.Function method : klass.methods) function(method, true);
+            }
+            case Stmt.Break breakStmt -> {
+                if (state != null) innermost().breaks.add(state);
+                state = null;
+            }
+            case Stmt.Continue continueStmt -> {
+                if (state != null) innermost().continues.add(state);
+                state = null;
+            }
+        }
+    }
+
+    private void define(int slot, boolean cell, Type type) {
+        if (slot != Expr.UNRESOLVED && state != null) state.set(slot, cell ? Type.ANY : type);
+    }
+
+    private Loop innermost() {
+        return loops.get(loops.size() - 1);
+    }
+
+    private void ifStmt(Stmt.If stmt) {
+        type(stmt.condition());
+        State otherwise = state == null ? null : state.copy();
+        infer(stmt.thenBranch());
+        State then = state;
+        state = otherwise;
+        if (stmt.elseBranch() != null) infer(stmt.elseBranch());
+        state = State.join(then, state);
+    }
+
+    // Goes around until the state at the top of the loop stops changing, so
+    // the last pass, whose annotations are the ones that stay, sees every
+    // type a local can have there.
+    private void loop(Expr condition, Stmt body, Expr increment) {
+        State head = state == null ? null : state.copy();
+        while (true) {
+            state = head == null ? null : head.copy();
+            Loop loop = new Loop();
+            loops.add(loop);
+            if (condition != null) type(condition);
+            State exit = state == null ? null : state.copy();
+            infer(body);
+            for (State next : loop.continues) state = State.join(state, next);
+            if (increment != null) type(increment);
+            loops.remove(loops.size() - 1);
+
+            State next = State.join(head, state);
+            if (State.same(next, head)) {
+                // A loop without a condition only leaves through break.
+                state = condition == null ? null : exit;
+                for (State broken : loop.breaks) state = State.join(state, broken);
+                return;
+            }
+            head = next;
+        }
+    }
+
+    // A function body runs in a frame of its own, whatever the surrounding
+    // code has assigned.
+    private void function(Stmt.Function function, boolean method) {
+        State enclosing = state;
+        List<Loop> enclosingLoops = new ArrayList<>(loops);
+        loops.clear();
+
+        state = new State(new Type[function.slotCount]);
+        Arrays.fill(state.slots, Type.NONE);
+        int slot = 0;
+        if (method) state.set(slot++, Type.INSTANCE);
+        for (int i = 0; i < function.params.size(); i++) state.set(slot++, Type.ANY);
+        infer(function.body);
+
+        state = enclosing;
+        loops.addAll(enclosingLoops);
+    }
+
+    // ---------------------------------------------------------- expressions
+
+    private Type type(Expr expr) {
+        return switch (expr) {
+            case Expr.Literal literal -> literal(literal.value());
+            case Expr.Grouping grouping -> type(grouping.expression());
+            case Expr.Unary unary -> {
+                type(unary.right());
+                yield unary.operator().type == TokenType.MINUS ? Type.NUMBER : Type.BOOLEAN;
+            }
+            case Expr.Binary binary -> binaryExpr(binary);
+            case Expr.Variable variable -> variableExpr(variable);
+            case Expr.Assign assign -> {
+                Type type = type(assign.value);
+                if (assign.access == Expr.LOCAL) define(assign.slot, assign.cell, type);
+                yield type;
+            }
+            case Expr.Logical logical -> {
+                Type left = type(logical.left());
+                State skipped = state == null ? null : state.copy();
+                Type right = type(logical.right());
+                state = State.join(skipped, state);
+                yield left.join(right);
+            }
+            case Expr.Call call -> {
+                type(call.callee());
+                call.arguments().forEach(this::type);
+                yield Type.ANY;
+            }
+            case Expr.Get get -> {
+                type(get.object());
+                yield Type.ANY;
+            }
+            case Expr.Set set -> {
+                type(set.object());
+                yield type(set.value());
+            }
+            case Expr.This thisExpr -> Type.INSTANCE;
+            case Expr.Super superExpr -> Type.ANY;
+            case Expr.Inline inline -> Type.ANY;
+            case Expr.Hoisted hoisted -> Type.ANY;
+        };
+    }
+
+    private static Type literal(Object value) {
+        if (value == null) return Type.NIL;
+        if (value instanceof Boolean) return Type.BOOLEAN;
+        if (value instanceof Double) return Type.NUMBER;
+        if (value instanceof String) return Type.STRING;
+        return Type.ANY;
+    }
+
+    private Type variableExpr(Expr.Variable expr) {
+        Type type = Type.ANY;
+        if (expr.access == Expr.LOCAL && !expr.cell) {
+            type = state == null ? Type.NONE : state.get(expr.slot);
+        }
+        expr.type = type;
+        return type;
+    }
+
+    private Type binaryExpr(Expr.Binary expr) {
+        Type left = type(expr.left);
+        Type right = type(expr.right);
+        Expr.Binary.Specialization specialization = Expr.Binary.Specialization.UNINITIALIZED;
+        boolean numbers = left == Type.NUMBER && right == Type.NUMBER;
+        Type type;
+        switch (expr.operator.type) {
+            case PLUS:
+                // Mixed operands throw, so one side is enough.
+                if (left == Type.NUMBER || right == Type.NUMBER) {
+                    type = Type.NUMBER;
+                } else if (left == Type.STRING || right == Type.STRING) {
+                    type = Type.STRING;
+                } else {
+                    type = Type.ANY;
+                }
+                if (numbers) specialization = Expr.Binary.Specialization.ADD_NUMBERS;
+                if (left == Type.STRING && right == Type.STRING) {
+                    specialization = Expr.Binary.Specialization.ADD_STRINGS;
+                }
+                break;
+            case MINUS:
+            case STAR:
+            case SLASH:
+                type = Type.NUMBER;
+                break;
+            case EQUAL_EQUAL:
+                if (numbers) specialization = Expr.Binary.Specialization.EQUAL_NUMBERS;
+                type = Type.BOOLEAN;
+                break;
+            case BANG_EQUAL:
+                if (numbers) specialization = Expr.Binary.Specialization.NOT_EQUAL_NUMBERS;
+                type = Type.BOOLEAN;
+                break;
+            default:
+                type = Type.BOOLEAN;
+                break;
+        }
+        expr.specialization = specialization;
+        return type;
+    }
+}
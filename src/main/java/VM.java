@@ -0,0 +1,663 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Stack-based interpreter for the bytecode produced by Compiler. Values are
+// the same Java objects the tree-walker uses (Double, Boolean, String, null)
+// plus the runtime structures below, so printing and equality match exactly.
+public class VM {
+    // Top-level code has a frame too, on top of the MAX_DEPTH calls.
+    private static final int FRAMES_MAX = Interpreter.MAX_DEPTH + 1;
+
+    static class Function {
+        final String name;
+        final Chunk chunk = new Chunk();
+        int arity = 0;
+        int upvalueCount = 0;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            if (name == null) return "<script>";
+            return "<fn " + name + ">";
+        }
+    }
+
+    static class Upvalue {
+        // While open the variable still lives in the VM stack at this slot;
+        // once closed it is moved into 'closed'.
+        int slot;
+        Object closed;
+        boolean isOpen = true;
+        Upvalue next;
+
+        Upvalue(int slot, Upvalue next) {
+            this.slot = slot;
+            this.next = next;
+        }
+    }
+
+    static class Closure {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function) {
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    static class ClassObject {
+        final String name;
+        final Map<String, Closure> methods = new HashMap<>();
+        Closure initializer;
+
+        ClassObject(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class Instance {
+        final ClassObject klass;
+        final Map<String, Object> fields = new HashMap<>();
+
+        Instance(ClassObject klass) {
+            this.klass = klass;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + " instance";
+        }
+    }
+
+    static class BoundMethod {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+
+    interface NativeFn {
+        Object call(Object[] args);
+    }
+
+    static class Native {
+        final int arity;
+        final NativeFn function;
+
+        Native(int arity, NativeFn function) {
+            this.arity = arity;
+            this.function = function;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    private static class CallFrame {
+        Closure closure;
+        int ip;
+        int base;
+    }
+
+    private static class Trap extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Trap(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private Object[] stack = new Object[1024];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues;
+    private final Map<String, Object> globals = new HashMap<>();
+
+    VM() {
+        globals.put("clock", new Native(0,
+            args -> (double)System.currentTimeMillis() / 1000.0));
+    }
+
+    void interpret(Function script) {
+        Closure closure = new Closure(script);
+        push(closure);
+        call(closure, 0);
+        try {
+            run();
+        } catch (Trap error) {
+            CallFrame frame = frames[frameCount - 1];
+            int line = frame.closure.function.chunk.lines[Math.max(frame.ip - 1, 0)];
+            System.err.println(error.getMessage() + "\n[line " + line + "]");
+            Main.EXIT_CODE = 70;
+        }
+    }
+
+    // ------------------------------------------------------------------ stack
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    private Object peek(int distance) {
+        return stack[sp - 1 - distance];
+    }
+
+    // ------------------------------------------------------------------ calls
+
+    private void call(Closure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw new Trap("Expected " + closure.function.arity +
+                " arguments but got " + argCount + ".");
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw new Trap("Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof Closure) {
+            call((Closure) callee, argCount);
+            return;
+        }
+        if (callee instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return;
+        }
+        if (callee instanceof ClassObject) {
+            ClassObject klass = (ClassObject) callee;
+            stack[sp - argCount - 1] = new Instance(klass);
+            if (klass.initializer != null) {
+                call(klass.initializer, argCount);
+            } else if (argCount != 0) {
+                throw new Trap("Expected 0 arguments but got " + argCount + ".");
+            }
+            return;
+        }
+        if (callee instanceof Native) {
+            Native fn = (Native) callee;
+            if (argCount != fn.arity) {
+                throw new Trap("Expected " + fn.arity +
+                    " arguments but got " + argCount + ".");
+            }
+            Object[] args = Arrays.copyOfRange(stack, sp - argCount, sp);
+            Object result = fn.function.call(args);
+            sp -= argCount + 1;
+            Arrays.fill(stack, sp, sp + argCount + 1, null);
+            push(result);
+            return;
+        }
+        throw new Trap("Can only call functions and classes.");
+    }
+
+    // The closure a tail call can run in the caller's frame, with the
+    // receiver already in slot zero, or null when it needs a real call.
+    private Closure tailTarget(int argCount) {
+        Object callee = stack[sp - 1 - argCount];
+        Closure closure;
+        if (callee instanceof Closure) {
+            closure = (Closure) callee;
+        } else if (callee instanceof BoundMethod) {
+            BoundMethod bound = (BoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            closure = bound.method;
+        } else {
+            return null;
+        }
+        if (argCount != closure.function.arity) {
+            throw new Trap("Expected " + closure.function.arity +
+                " arguments but got " + argCount + ".");
+        }
+        return closure;
+    }
+
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        Upvalue created = new Upvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.isOpen = false;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    // ---------------------------------------------------------------- helpers
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean)object;
+        return true;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        // Interned strings, and any value compared with itself.
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        // A Rope equals the String with the same chars.
+        if (a instanceof Rope) a = a.toString();
+        if (b instanceof Rope) b = b.toString();
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        return object.toString();
+    }
+
+    private void checkNumberOperands() {
+        if (stack[sp - 1] instanceof Double && stack[sp - 2] instanceof Double) return;
+        throw new Trap("Operands must be numbers.");
+    }
+
+    // --------------------------------------------------------------- dispatch
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int base = frame.base;
+        int ip = frame.ip;
+
+        try {
+            while (true) {
+                byte instruction = code[ip++];
+                switch (instruction) {
+                    case OpCode.CONSTANT: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        push(constants[index]);
+                        break;
+                    }
+                    case OpCode.NIL: push(null); break;
+                    case OpCode.TRUE: push(true); break;
+                    case OpCode.FALSE: push(false); break;
+                    case OpCode.POP: pop(); break;
+                    case OpCode.GET_LOCAL: {
+                        int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        push(stack[base + slot]);
+                        break;
+                    }
+                    case OpCode.SET_LOCAL: {
+                        int slot = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        stack[base + slot] = stack[sp - 1];
+                        break;
+                    }
+                    case OpCode.GET_GLOBAL: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        String name = (String) constants[index];
+                        Object value = globals.get(name);
+                        if (value == null && !globals.containsKey(name)) {
+                            throw new Trap("Undefined variable '" + name + "'.");
+                        }
+                        push(value);
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        globals.put((String) constants[index], pop());
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        String name = (String) constants[index];
+                        if (!globals.containsKey(name)) {
+                            throw new Trap("Undefined variable '" + name + "'.");
+                        }
+                        globals.put(name, stack[sp - 1]);
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        Upvalue upvalue = frame.closure.upvalues[index];
+                        push(upvalue.isOpen ? stack[upvalue.slot] : upvalue.closed);
+                        break;
+                    }
+                    case OpCode.SET_UPVALUE: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        Upvalue upvalue = frame.closure.upvalues[index];
+                        if (upvalue.isOpen) {
+                            stack[upvalue.slot] = stack[sp - 1];
+                        } else {
+                            upvalue.closed = stack[sp - 1];
+                        }
+                        break;
+                    }
+                    case OpCode.GET_PROPERTY: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (!(stack[sp - 1] instanceof Instance)) {
+                            throw new Trap("Only instances have properties.");
+                        }
+                        Instance instance = (Instance) stack[sp - 1];
+                        String name = (String) constants[index];
+                        Object value = instance.fields.get(name);
+                        if (value != null || instance.fields.containsKey(name)) {
+                            stack[sp - 1] = value;
+                            break;
+                        }
+                        Closure method = instance.klass.methods.get(name);
+                        if (method == null) {
+                            throw new Trap("Undefined property '" + name + "'.");
+                        }
+                        stack[sp - 1] = new BoundMethod(instance, method);
+                        break;
+                    }
+                    case OpCode.CHECK_FIELDS: {
+                        if (!(stack[sp - 1] instanceof Instance)) {
+                            throw new Trap("Only instances have fields.");
+                        }
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (!(stack[sp - 2] instanceof Instance)) {
+                            throw new Trap("Only instances have fields.");
+                        }
+                        Instance instance = (Instance) stack[sp - 2];
+                        Object value = pop();
+                        instance.fields.put((String) constants[index], value);
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    case OpCode.GET_SUPER: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        String name = (String) constants[index];
+                        ClassObject superclass = (ClassObject) pop();
+                        Closure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw new Trap("Undefined property '" + name + "'.");
+                        }
+                        stack[sp - 1] = new BoundMethod(stack[sp - 1], method);
+                        break;
+                    }
+                    case OpCode.EQUAL: {
+                        Object b = pop();
+                        stack[sp - 1] = isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.NOT_EQUAL: {
+                        Object b = pop();
+                        stack[sp - 1] = !isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] > b;
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] >= b;
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] < b;
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] <= b;
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        Object b = stack[sp - 1];
+                        Object a = stack[sp - 2];
+                        if (a instanceof Double && b instanceof Double) {
+                            pop();
+                            stack[sp - 1] = (double) a + (double) b;
+                        } else if (a instanceof CharSequence && b instanceof CharSequence) {
+                            pop();
+                            stack[sp - 1] = Rope.concat((CharSequence) a, (CharSequence) b);
+                        } else {
+                            throw new Trap("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] - b;
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] * b;
+                        break;
+                    }
+                    case OpCode.DIVIDE: {
+                        checkNumberOperands();
+                        double b = (double) pop();
+                        stack[sp - 1] = (double) stack[sp - 1] / b;
+                        break;
+                    }
+                    case OpCode.NOT:
+                        stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                        break;
+                    case OpCode.NEGATE: {
+                        if (!(stack[sp - 1] instanceof Double)) {
+                            throw new Trap("Operand must be a number.");
+                        }
+                        stack[sp - 1] = -(double) stack[sp - 1];
+                        break;
+                    }
+                    case OpCode.PRINT:
+                        System.out.println(stringify(pop()));
+                        break;
+                    case OpCode.JUMP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 + offset;
+                        break;
+                    }
+                    case OpCode.JUMP_IF_FALSE: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (!isTruthy(stack[sp - 1])) ip += offset;
+                        break;
+                    }
+                    case OpCode.LOOP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 - offset;
+                        break;
+                    }
+                    case OpCode.CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        callValue(stack[sp - 1 - argCount], argCount);
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        base = frame.base;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OpCode.TAIL_CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        Closure target = tailTarget(argCount);
+                        if (target == null) {
+                            // Classes and natives run as a plain call; the
+                            // RETURN after this instruction passes on the result.
+                            callValue(stack[sp - 1 - argCount], argCount);
+                            frame = frames[frameCount - 1];
+                            code = frame.closure.function.chunk.code;
+                            constants = frame.closure.function.chunk.constants;
+                            base = frame.base;
+                            ip = frame.ip;
+                            break;
+                        }
+                        // Slide the callee and its arguments down over the
+                        // returning frame and run the target in that frame.
+                        closeUpvalues(base);
+                        System.arraycopy(stack, sp - argCount - 1, stack, base, argCount + 1);
+                        Arrays.fill(stack, base + argCount + 1, sp, null);
+                        sp = base + argCount + 1;
+                        frame.closure = target;
+                        code = target.function.chunk.code;
+                        constants = target.function.chunk.constants;
+                        ip = 0;
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        Closure closure = new Closure((Function) constants[index]);
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip] == 1;
+                            int upvalueIndex = ((code[ip + 1] & 0xff) << 8) | (code[ip + 2] & 0xff);
+                            ip += 3;
+                            closure.upvalues[i] = isLocal
+                                ? captureUpvalue(base + upvalueIndex)
+                                : frame.closure.upvalues[upvalueIndex];
+                        }
+                        push(closure);
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE:
+                        closeUpvalues(sp - 1);
+                        pop();
+                        break;
+                    case OpCode.RETURN: {
+                        Object result = pop();
+                        closeUpvalues(base);
+                        frameCount--;
+                        if (frameCount == 0) {
+                            pop();
+                            return;
+                        }
+                        Arrays.fill(stack, base, sp, null);
+                        sp = base;
+                        push(result);
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        base = frame.base;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OpCode.CLASS: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        push(new ClassObject((String) constants[index]));
+                        break;
+                    }
+                    case OpCode.INHERIT: {
+                        if (!(stack[sp - 2] instanceof ClassObject)) {
+                            throw new Trap("Superclass must be a class.");
+                        }
+                        ClassObject superclass = (ClassObject) stack[sp - 2];
+                        ClassObject subclass = (ClassObject) stack[sp - 1];
+                        subclass.methods.putAll(superclass.methods);
+                        subclass.initializer = superclass.initializer;
+                        pop();
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        String name = (String) constants[index];
+                        Closure method = (Closure) stack[sp - 1];
+                        ClassObject klass = (ClassObject) stack[sp - 2];
+                        klass.methods.put(name, method);
+                        if (name.equals("init")) klass.initializer = method;
+                        pop();
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("Unknown opcode " + instruction);
+                }
+            }
+        } catch (Trap error) {
+            frame.ip = ip;
+            throw error;
+        }
+    }
+}